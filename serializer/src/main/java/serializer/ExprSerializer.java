@@ -29,7 +29,6 @@ public class ExprSerializer {
    * a list of directories that contain expr files
    */
   final List<String> exprsDirs = new ArrayList<>();
-  final PegExprVisitor pev = new PegExprVisitor();
 
   /**
    * Count the number of times a peg translation error has occurred
@@ -108,7 +107,6 @@ public class ExprSerializer {
       System.err.println("Bad expr file ending: " + file.getName());
       return;
     }
-    PegNode.clear();
     ExprFile ef = new ExprFile(file);
     ef.writeToCorFile(subjectsDir);
   }
@@ -160,6 +158,12 @@ public class ExprSerializer {
     Map<String, List<MaxExpr>> nsToMaxExprs;
     private final File inFile;
 
+    /**
+     * The graph holding the PEGs of every maximal expression and mutant in this file
+     */
+    final PegGraph graph = new PegGraph();
+    final PegExprVisitor pev = new PegExprVisitor(graph);
+
     ExprFile(File file) throws IOException {
       inFile = file;
       nsToMaxExprs = new HashMap<>();
@@ -194,7 +198,7 @@ public class ExprSerializer {
             assert ns != null;
             assert maxExpr == null;
             try {
-              maxExpr = new MaxExpr(ns, joiner.toString());
+              maxExpr = new MaxExpr(this, ns, joiner.toString());
               nsToMaxExprs.computeIfAbsent(ns, k -> new ArrayList<>()).add(maxExpr);
             } catch (ParseProblemException e) {
               maxExpr = null;
@@ -355,7 +359,7 @@ public class ExprSerializer {
 
       }
       if (!xml.hasSubject()) return;
-      xml.addIdTable(PegNode.getIdLookup());
+      xml.addIdTable(graph);
 
       try {
         xml.writeToFile(filename);
@@ -369,6 +373,11 @@ public class ExprSerializer {
    * Represent a maximal expression and all of it's mutants
    */
   class MaxExpr {
+    /**
+     * The file this maximal expression was read from
+     */
+    protected final ExprFile exprFile;
+
     /**
      * Namespace of this maximal expression
      */
@@ -426,7 +435,8 @@ public class ExprSerializer {
 
     private Map<String, Expression> constMap2;
 
-    protected MaxExpr(String ns, String source) {
+    protected MaxExpr(ExprFile exprFile, String ns, String source) {
+      this.exprFile = exprFile;
       this.ns = ns.trim();
       this.source = source.trim();
       mutants = new ArrayList<>();
@@ -470,27 +480,27 @@ public class ExprSerializer {
       for (String k : this.typeMap.keySet()) {
         final TypeData td = this.typeMap.get(k);
         if (td.isArray()) {
-          typeMap.put(k, PegNode.stringLit("Array"));
+          typeMap.put(k, exprFile.graph.stringLit("Array"));
         } else if (td.isCollection()) {
-          typeMap.put(k, PegNode.stringLit("java.util.Collection"));
+          typeMap.put(k, exprFile.graph.stringLit("java.util.Collection"));
         } else if (td.isString()) {
-          typeMap.put(k, PegNode.stringLit("java.lang.String"));
+          typeMap.put(k, exprFile.graph.stringLit("java.lang.String"));
         } else if (td.isReader()) {
-          typeMap.put(k, PegNode.stringLit("java.io.Reader"));
+          typeMap.put(k, exprFile.graph.stringLit("java.io.Reader"));
         } else if (td.isBitSet()) {
-          typeMap.put(k, PegNode.stringLit("java.util.BitSet"));
+          typeMap.put(k, exprFile.graph.stringLit("java.util.BitSet"));
         }
         // TODO: Currently I am just hardcoding either "ARRAY" or "COLLECTION". At some point I want to
         //       use the following line to be completely general, but this will involve updating the
         //       Rust backend to handle this more complex data form. For the present paper I think it's
         //       fine to just use this info and reimplement to make it more expressive in future iterations.
 
-        // typeMap.put(k, PegNode.typeAnnotationNode(td.typeName, td.interfaces, td.superclasses));
+        // typeMap.put(k, exprFile.graph.typeAnnotationNode(td.typeName, td.interfaces, td.superclasses));
       }
-      PegContext ctx = PegContext.initWithParams(globals, locals, typeMap);
+      PegContext ctx = PegContext.initWithParams(exprFile.graph, globals, locals, typeMap);
       for (String ident : constMap2.keySet()) {
         Expression v = constMap2.get(ident);
-        PegNode p = v.accept(pev, PegContext.EMPTY_CTX).peg;
+        PegNode p = v.accept(exprFile.pev, PegContext.empty(exprFile.graph)).peg;
         ctx = ctx.setLocalVar(ident, p);
 
       }
@@ -518,7 +528,7 @@ public class ExprSerializer {
         }
         ExpressionResult expressionResult;
         try {
-          expressionResult = tree.accept(pev, getInitCtx());
+          expressionResult = tree.accept(exprFile.pev, getInitCtx());
         } catch (RuntimeException e) {
           pegTranslationError = true;
           logPegTranslationError(e.getMessage(), source);
@@ -526,16 +536,20 @@ public class ExprSerializer {
 
         }
         try {
-          peg = PegNode.maxExpr(startPos, expressionResult.peg.id, expressionResult.context);
+          peg = exprFile.graph.maxExpr(startPos, expressionResult.peg.id, expressionResult.context);
           if (verbose) {
             System.out.println("---------------------------------");
-            System.out.println("0:" + peg.toDerefString());
+            System.out.print("0:");
+            PegPrinter.print(peg, System.out);
+            System.out.println();
           }
           context = expressionResult.context;
           for (Mutant m : mutants) {
             m.computePegNodes(initContext);
             if (verbose) {
-              System.out.println(m.m_no + ":" + m.peg.toDerefString());
+              System.out.print(m.m_no + ":");
+              PegPrinter.print(m.peg, System.out);
+              System.out.println();
             }
           }
         }
@@ -585,8 +599,8 @@ public class ExprSerializer {
     }
 
     void computePegNodes(PegContext initCtx) {
-      final ExpressionResult expressionResult = tree.accept(pev, initCtx);
-      peg = PegNode.maxExpr(maxExpr.startPos, expressionResult.peg.id, expressionResult.context);
+      final ExpressionResult expressionResult = tree.accept(maxExpr.exprFile.pev, initCtx);
+      peg = maxExpr.exprFile.graph.maxExpr(maxExpr.startPos, expressionResult.peg.id, expressionResult.context);
       context = expressionResult.context;
     }
   }
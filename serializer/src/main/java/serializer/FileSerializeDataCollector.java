@@ -80,7 +80,6 @@ public class FileSerializeDataCollector {
   }
 
   final PegClassVisitor classVisitor = new PegClassVisitor();
-  final PegStmtVisitor stmtVisitor = new PegStmtVisitor(false);
 
   public Set<ClassVisitResult> run() {
     int successes = 0;
@@ -91,6 +90,7 @@ public class FileSerializeDataCollector {
       bar.printBar(i++);
       try {
         CompilationUnit cu = StaticJavaParser.parse(new File(file));
+        final PegStmtVisitor stmtVisitor = new PegStmtVisitor(new PegGraph(), false);
         for (TypeDeclaration<?> type : cu.getTypes()) {
           if (type.isClassOrInterfaceDeclaration()) {
             final ClassOrInterfaceDeclaration ctype = type.asClassOrInterfaceDeclaration();
@@ -98,11 +98,11 @@ public class FileSerializeDataCollector {
             if (ctype.isInterface()) continue;
             final PegClassVisitor.ClassVisitorResult classVisitorResult = classVisitor.visit(ctype);
             for (MethodDeclaration method : ctype.getMethods()) {
-              visitDecl(classVisitorResult, method, cvr);
+              visitDecl(stmtVisitor, classVisitorResult, method, cvr);
             }
 
             for (ConstructorDeclaration constructor : ctype.getConstructors()) {
-              visitDecl(classVisitorResult, constructor, cvr);
+              visitDecl(stmtVisitor, classVisitorResult, constructor, cvr);
             }
 
             successes += cvr.numSuccess;
@@ -152,18 +152,22 @@ public class FileSerializeDataCollector {
 
   /**
    * Visit a declaration (Method or Constructor)
+   * @param stmtVisitor the visitor used to translate the declaration
    * @param classVisitorResult
    * @param decl
    * @param cvr
    * @param <D>
    */
   <D extends Node & NodeWithAbstractModifier<?> & NodeWithParameters<?> & NodeWithStaticModifier<?> & NodeWithSimpleName<?>>
-  void visitDecl(PegClassVisitor.ClassVisitorResult classVisitorResult,
+  void visitDecl(PegStmtVisitor stmtVisitor,
+                 PegClassVisitor.ClassVisitorResult classVisitorResult,
                                                              D decl,
                                                              ClassVisitResult cvr)
   {
     if (decl.isAbstract()) return;
     final PegContext initCtx = PegContext.initWithParams(
+            stmtVisitor.graph,
+            decl,
             classVisitorResult.getFieldNames(),
             Util.getParameterList(decl),
             new HashMap<>());
@@ -13,6 +13,10 @@ import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class Serializer {
@@ -21,6 +25,32 @@ public class Serializer {
   boolean logUnserializable = false;
   boolean writeToConsole = false;
 
+  /**
+   * Number of threads used to translate mutants. When this is greater than 1, all mutants of a file are translated
+   * in parallel into a single shared, concurrent {@code PegGraph}. A concurrent graph can't be rolled back, so the
+   * nodes of a method or mutant whose translation fails (for instance, by going over its budget) stay in the graph
+   * and are written to the id table, unless {@code pruneIdTable} is set.
+   */
+  int threads = 1;
+
+  /**
+   * Write only the nodes reachable from subject and mutant PEGs to the id table, renumbered densely
+   */
+  boolean pruneIdTable = false;
+
+  /**
+   * Rebuild each subject and its mutants with a {@code PegOptimizer} before serializing them, and report how many
+   * nodes each subject's PEGs shrank by
+   */
+  boolean optimize = false;
+
+  /**
+   * Limits on the nodes and time spent translating each original method and each mutant. A translation that goes over
+   * budget fails with reason {@value TranslationBudget#BUDGET_EXCEEDED}.
+   */
+  TranslationBudget methodBudget = TranslationBudget.UNLIMITED;
+  TranslationBudget mutantBudget = TranslationBudget.UNLIMITED;
+
   public static void main(String[] args) {
     if (args.length < 2) {
       usage();
@@ -60,6 +90,19 @@ public class Serializer {
         logUnserializable = true;
       } else if ("--stdout".equals(arg)) {
         writeToConsole = true;
+      } else if ("--threads".equals(arg)) {
+        threads = Integer.parseInt(args[++i]);
+        if (threads < 1) {
+          throw new IllegalArgumentException("--threads must be positive");
+        }
+      } else if ("--prune-id-table".equals(arg)) {
+        pruneIdTable = true;
+      } else if ("--optimize".equals(arg)) {
+        optimize = true;
+      } else if ("--method-budget".equals(arg)) {
+        methodBudget = TranslationBudget.parse(args[++i]);
+      } else if ("--mutant-budget".equals(arg)) {
+        mutantBudget = TranslationBudget.parse(args[++i]);
       }
       else {
         files.add(new File(arg));
@@ -69,7 +112,9 @@ public class Serializer {
   }
 
   public static void usage() {
-    System.err.println("Usage: Serializer mutant-log mutants-dir java-file*");
+    System.err.println("Usage: Serializer mutant-log mutants-dir java-file* [--print-pegs] [--log-unserializable] " +
+            "[--stdout] [--threads N] [--prune-id-table] [--optimize] " +
+            "[--method-budget NODES,MILLIS] [--mutant-budget NODES,MILLIS]");
     System.exit(1);
   }
 
@@ -84,18 +129,38 @@ public class Serializer {
     final Set<String> serializable = new HashSet<>();
 
     Util.ProgressBar bar = new Util.ProgressBar(files.size());
-    Map<File, com.github.javaparser.ParseProblemException> failedMutantParseFiles = new HashMap<>();
+    Map<File, com.github.javaparser.ParseProblemException> failedMutantParseFiles = new ConcurrentHashMap<>();
+    final Set<String> overBudgetMutants = ConcurrentHashMap.newKeySet();
+    // Shared by the threads translating mutants, each of which has a translator of its own
+    final Map<String, Integer> failureReasons = new ConcurrentHashMap<>();
+    int overBudgetMethods = 0;
+    final ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
 
     long i = 0;
     for (File origFile : files ){
-      PegNode.clear();
       bar.printBar(i++);
       try {
         final CompilationUnit cu = StaticJavaParser.parse(origFile);
         final XMLGenerator xmlGen = new XMLGenerator();
-        final PegTranslator translator = new PegTranslator();
+        final PegGraph graph = pool == null ? new PegGraph() : PegGraph.concurrent();
+        final PegTranslator translator = new PegTranslator(graph);
+        // Mutants resume from the original's translation of the statements before their mutation
+        translator.recordCheckpoints();
+        // PegTranslators are not thread safe, so each worker thread gets its own translator over the shared graph
+        final ThreadLocal<PegTranslator> translators = ThreadLocal.withInitial(() -> {
+          final PegTranslator t = new PegTranslator(graph);
+          t.shareCheckpoints(translator);
+          return t;
+        });
+        translator.setBudget(methodBudget);
         final Map<String, PegNode> methodMap = translator.translate(cu);
+        overBudgetMethods += translator.getFailureReasons().getOrDefault(TranslationBudget.BUDGET_EXCEEDED, 0);
+        translator.getFailureReasons().forEach((reason, n) -> failureReasons.merge(String.valueOf(reason), n,
+                Integer::sum));
         if (methodMap.size() == 0) continue;
+        // Optimized PEGs are rebuilt in their own graph, which is then serialized in place of the translated one
+        final PegOptimizer optimizer = optimize ? new PegOptimizer(new PegGraph()) : null;
+        final PegGraph outGraph = optimizer == null ? graph : optimizer.graph;
 
         if (printPegs) {
           System.out.println(origFile.getAbsolutePath());
@@ -126,30 +191,54 @@ public class Serializer {
           List<MutantsLog.Row> rowsToAdd = new ArrayList<>();
           if (printPegs) {
             System.out.println("---------------------------------------");
-            System.out.printf("%s:\n[orig] %s\n\n", sig , methodMap.get(sig).toDerefString());
+            System.out.printf("%s:\n[orig] ", sig);
+            PegPrinter.print(methodMap.get(sig), System.out);
+            System.out.print("\n\n");
           }
-          for (MutantsLog.Row row : rowsForMethod) {
-            final File mutantFile = idToFiles.get(row.id);
-            try {
-              final CompilationUnit mcu = StaticJavaParser.parse(mutantFile);
-              try {
-                PegNode p = translator.translate(mcu, unqualifiedSig);
-                row.pegId = p.id;
-                serializable.add(row.id);
-                rowsToAdd.add(row);
-                if (printPegs) {
-                  System.out.printf("[%s] %s\n\n", row.id, p.toDerefString());
-                }
-              } catch (RuntimeException e) {}
-            } catch (FileNotFoundException e) {
-              throw new RuntimeException("Couldn't find mutant " + row.id);
-            } catch (com.github.javaparser.ParseProblemException e) {
-              failedMutantParseFiles.put(mutantFile, e);
+          final List<PegNode> mutantPegs;
+          if (pool == null) {
+            mutantPegs = rowsForMethod.stream()
+                    .map(row -> translateMutant(translator, row, idToFiles.get(row.id), unqualifiedSig,
+                            mutantBudget, failedMutantParseFiles, overBudgetMutants, failureReasons))
+                    .collect(Collectors.toCollection(ArrayList::new));
+          } else {
+            mutantPegs = translateInParallel(pool, () -> rowsForMethod.parallelStream()
+                    .map(row -> translateMutant(translators.get(), row, idToFiles.get(row.id), unqualifiedSig,
+                            mutantBudget, failedMutantParseFiles, overBudgetMutants, failureReasons))
+                    .collect(Collectors.toCollection(ArrayList::new)));
+          }
+
+          PegNode subjectPeg = methodMap.get(sig);
+          if (optimizer != null) {
+            final List<Integer> roots = new ArrayList<>();
+            roots.add(subjectPeg.id);
+            mutantPegs.stream().filter(Objects::nonNull).forEach(p -> roots.add(p.id));
+            final int before = IdRenumbering.reachable(graph, roots).size();
+            subjectPeg = optimizer.optimize(subjectPeg);
+            roots.clear();
+            roots.add(subjectPeg.id);
+            mutantPegs.replaceAll(p -> p == null ? null : optimizer.optimize(p));
+            mutantPegs.stream().filter(Objects::nonNull).forEach(p -> roots.add(p.id));
+            final int after = IdRenumbering.reachable(outGraph, roots).size();
+            System.out.printf("Optimized %s: %d -> %d nodes (%+d)\n", sig, before, after, after - before);
+          }
+
+          for (int j = 0; j < rowsForMethod.size(); ++j) {
+            final MutantsLog.Row row = rowsForMethod.get(j);
+            final PegNode p = mutantPegs.get(j);
+            if (p == null) continue;
+            row.pegId = p.id;
+            serializable.add(row.id);
+            rowsToAdd.add(row);
+            if (printPegs) {
+              System.out.printf("[%s] ", row.id);
+              PegPrinter.print(p, System.out);
+              System.out.print("\n\n");
             }
           }
 
           if (!rowsToAdd.isEmpty()) {
-            xmlGen.addSubject(origFile.getName(), sig, methodMap.get(sig).id, rowsToAdd);
+            xmlGen.addSubject(origFile.getName(), sig, subjectPeg.id, rowsToAdd);
           }
         }
 
@@ -157,8 +246,15 @@ public class Serializer {
         if (! xmlGen.hasSubject()) continue;
 
         // Otherwise, let's add the ID table and the node equivalences table
-        xmlGen.addIdTable(PegNode.getIdLookup());
-        xmlGen.addEquivalences(PegNode.getNodeEquivalences());
+        if (pruneIdTable) {
+          final IdRenumbering ids = IdRenumbering.reachable(outGraph, xmlGen.getPegIds());
+          xmlGen.renumberPegIds(ids);
+          xmlGen.addIdTable(ids);
+          xmlGen.addEquivalences(ids.renumber(outGraph.getNodeEquivalences()));
+        } else {
+          xmlGen.addIdTable(outGraph);
+          xmlGen.addEquivalences(outGraph.getNodeEquivalences());
+        }
 
         if (writeToConsole) {
           xmlGen.writeToConsole();
@@ -177,10 +273,13 @@ public class Serializer {
           System.out.printf("Serialized %d subjects: %s\n", xmlGen.numSubjects(), filename);
           xmlGen.writeToFile(filename);
         }
-      } catch (FileNotFoundException | TransformerException e) {
+      } catch (IOException | TransformerException e) {
         e.printStackTrace();
       }
     }
+    if (pool != null) {
+      pool.shutdown();
+    }
     bar.clearLastBar();
     bar.printBar(i);
 
@@ -199,6 +298,16 @@ public class Serializer {
       }
     }
 
+    if (overBudgetMethods > 0 || !overBudgetMutants.isEmpty()) {
+      System.out.printf("%d methods and %d mutants exceeded their translation budget\n", overBudgetMethods,
+              overBudgetMutants.size());
+    }
+    if (!failureReasons.isEmpty()) {
+      System.out.println("Failed translations by reason:");
+      failureReasons.entrySet().stream().sorted(Map.Entry.comparingByKey())
+              .forEach(e -> System.out.printf("    %d: %s\n", e.getValue(), e.getKey()));
+    }
+
     if (logUnserializable) {
       final Set<String> allIds = mutantsLog.idMap.keySet();
       System.out.printf("Found %d ids\n", allIds.size());
@@ -231,10 +340,80 @@ public class Serializer {
           attemptedToSerializeLog.newLine();
         }
         attemptedToSerializeLog.close();
+
+        filepath = Paths.get(logsDir.toString(), "over-budget");
+        BufferedWriter overBudgetLog = new BufferedWriter(new FileWriter(filepath.toString()));
+        for (String id: overBudgetMutants) {
+          overBudgetLog.write(id);
+          overBudgetLog.newLine();
+        }
+        overBudgetLog.close();
       } catch (IOException e) {
         System.err.print("Failed to log unserializable mutants: ");
         System.err.println(e.getMessage());
       }
     }
   }
+
+  /**
+   * Parse and translate a single mutant. If translation fails and the translator's graph is not shared between
+   * threads, every node created by the failed translation is rolled back so it doesn't end up in the id table.
+   * @param translator the translator to translate the mutant with
+   * @param row the mutant's row in the mutants log
+   * @param mutantFile the mutant's source file
+   * @param unqualifiedSig the signature of the mutated method
+   * @param budget the budget to translate the mutant within
+   * @param failedMutantParseFiles a map to record parse failures in
+   * @param overBudgetMutants a set to record the ids of mutants that exceeded {@code budget} in
+   * @param failureReasons a map to count failed translations in, by reason
+   * @return the mutant's PEG, or {@code null} if it could not be parsed or translated
+   */
+  private static PegNode translateMutant(final PegTranslator translator,
+                                         final MutantsLog.Row row,
+                                         final File mutantFile,
+                                         final String unqualifiedSig,
+                                         final TranslationBudget budget,
+                                         final Map<File, com.github.javaparser.ParseProblemException> failedMutantParseFiles,
+                                         final Set<String> overBudgetMutants,
+                                         final Map<String, Integer> failureReasons)
+  {
+    try {
+      final CompilationUnit mcu = StaticJavaParser.parse(mutantFile);
+      final PegGraph.Checkpoint checkpoint = translator.graph.isConcurrent() ? null : translator.graph.checkpoint();
+      try {
+        return translator.translate(mcu, unqualifiedSig, budget, row.lineNumber);
+      } catch (RuntimeException e) {
+        failureReasons.merge(String.valueOf(e.getMessage()), 1, Integer::sum);
+        if (e instanceof TranslationBudget.Exceeded) {
+          overBudgetMutants.add(row.id);
+        }
+        if (checkpoint != null) {
+          translator.graph.rollback(checkpoint);
+        }
+        return null;
+      }
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException("Couldn't find mutant " + row.id);
+    } catch (com.github.javaparser.ParseProblemException e) {
+      failedMutantParseFiles.put(mutantFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Run a parallel stream computation in {@code pool}, rethrowing any exception thrown by a worker
+   */
+  private static <T> T translateInParallel(final ForkJoinPool pool, final Callable<T> task) {
+    try {
+      return pool.submit(task).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
 }
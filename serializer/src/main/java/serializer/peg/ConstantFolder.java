@@ -0,0 +1,158 @@
+package serializer.peg;
+
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * <p>Folds operators applied to int, long and boolean literals into literals. Folding is driven by tables indexed by
+ * opcode, one per operand type, and computes exactly what Java would: int and long arithmetic wraps on overflow,
+ * shift distances are masked to the width of the (promoted) left operand, division truncates, and an {@code int}
+ * operand is widened when the other operand is a {@code long} (except for a shift's distance, which never affects the
+ * result's type).</p>
+ *
+ * <p>An operator whose evaluation would throw, such as an integer division by zero, is not folded.</p>
+ */
+final class ConstantFolder {
+    private interface BooleanBinaryOperator {
+        boolean apply(boolean a, boolean b);
+    }
+
+    private interface LongComparison {
+        boolean test(long a, long b);
+    }
+
+    private static final int SIZE = Opcodes.size();
+
+    private static final IntBinaryOperator[] intOps = new IntBinaryOperator[SIZE];
+    private static final LongBinaryOperator[] longOps = new LongBinaryOperator[SIZE];
+    private static final LongComparison[] comparisons = new LongComparison[SIZE];
+    private static final BooleanBinaryOperator[] booleanOps = new BooleanBinaryOperator[SIZE];
+    private static final IntUnaryOperator[] intUnaryOps = new IntUnaryOperator[SIZE];
+    private static final LongUnaryOperator[] longUnaryOps = new LongUnaryOperator[SIZE];
+    private static final boolean[] shifts = new boolean[SIZE];
+    /**
+     * Does any table have an entry for this opcode?
+     */
+    private static final boolean[] folds = new boolean[SIZE];
+
+    static {
+        intOps[Opcodes.PLUS] = (a, b) -> a + b;
+        intOps[Opcodes.MINUS] = (a, b) -> a - b;
+        intOps[Opcodes.TIMES] = (a, b) -> a * b;
+        intOps[Opcodes.DIVIDE] = (a, b) -> a / b;
+        intOps[Opcodes.REMAINDER] = (a, b) -> a % b;
+        intOps[Opcodes.BIN_AND] = (a, b) -> a & b;
+        intOps[Opcodes.BIN_OR] = (a, b) -> a | b;
+        intOps[Opcodes.XOR] = (a, b) -> a ^ b;
+        intOps[Opcodes.LSHIFT] = (a, b) -> a << b;
+        intOps[Opcodes.SRSHIFT] = (a, b) -> a >> b;
+        intOps[Opcodes.URSHIFT] = (a, b) -> a >>> b;
+
+        longOps[Opcodes.PLUS] = (a, b) -> a + b;
+        longOps[Opcodes.MINUS] = (a, b) -> a - b;
+        longOps[Opcodes.TIMES] = (a, b) -> a * b;
+        longOps[Opcodes.DIVIDE] = (a, b) -> a / b;
+        longOps[Opcodes.REMAINDER] = (a, b) -> a % b;
+        longOps[Opcodes.BIN_AND] = (a, b) -> a & b;
+        longOps[Opcodes.BIN_OR] = (a, b) -> a | b;
+        longOps[Opcodes.XOR] = (a, b) -> a ^ b;
+        longOps[Opcodes.LSHIFT] = (a, b) -> a << b;
+        longOps[Opcodes.SRSHIFT] = (a, b) -> a >> b;
+        longOps[Opcodes.URSHIFT] = (a, b) -> a >>> b;
+
+        shifts[Opcodes.LSHIFT] = true;
+        shifts[Opcodes.SRSHIFT] = true;
+        shifts[Opcodes.URSHIFT] = true;
+
+        comparisons[Opcodes.LT] = (a, b) -> a < b;
+        comparisons[Opcodes.LE] = (a, b) -> a <= b;
+        comparisons[Opcodes.GT] = (a, b) -> a > b;
+        comparisons[Opcodes.GE] = (a, b) -> a >= b;
+        comparisons[Opcodes.EQ] = (a, b) -> a == b;
+        comparisons[Opcodes.NE] = (a, b) -> a != b;
+
+        booleanOps[Opcodes.AND] = (a, b) -> a && b;
+        booleanOps[Opcodes.OR] = (a, b) -> a || b;
+        booleanOps[Opcodes.BIN_AND] = (a, b) -> a & b;
+        booleanOps[Opcodes.BIN_OR] = (a, b) -> a | b;
+        booleanOps[Opcodes.XOR] = (a, b) -> a ^ b;
+        booleanOps[Opcodes.EQ] = (a, b) -> a == b;
+        booleanOps[Opcodes.NE] = (a, b) -> a != b;
+
+        intUnaryOps[Opcodes.UMINUS] = a -> -a;
+        intUnaryOps[Opcodes.UPLUS] = a -> a;
+        intUnaryOps[Opcodes.NEG] = a -> ~a;
+
+        longUnaryOps[Opcodes.UMINUS] = a -> -a;
+        longUnaryOps[Opcodes.UPLUS] = a -> a;
+        longUnaryOps[Opcodes.NEG] = a -> ~a;
+
+        // NOT, the only unary boolean operator, is folded without a table
+        folds[Opcodes.NOT] = true;
+        for (int op = 0; op < SIZE; ++op) {
+            folds[op] |= intOps[op] != null || longOps[op] != null || comparisons[op] != null
+                    || booleanOps[op] != null || intUnaryOps[op] != null || longUnaryOps[op] != null;
+        }
+    }
+
+    private ConstantFolder() {}
+
+    /**
+     * @return {@code true} if {@code opcode} can ever be folded. This is a cheap test to make before looking up an
+     *         operator's operands.
+     */
+    static boolean folds(final int opcode) {
+        return opcode < SIZE && folds[opcode];
+    }
+
+    /**
+     * @return the literal that {@code (opcode operand)} evaluates to, or {@code null} if it can't be folded
+     */
+    static PegNode fold(final PegGraph graph, final int opcode, final PegNode operand) {
+        if (operand instanceof PegNode.IntLit && intUnaryOps[opcode] != null) {
+            return graph.intLit(intUnaryOps[opcode].applyAsInt(((PegNode.IntLit) operand).value));
+        }
+        if (operand instanceof PegNode.LongLit && longUnaryOps[opcode] != null) {
+            return graph.longLit(longUnaryOps[opcode].applyAsLong(((PegNode.LongLit) operand).value));
+        }
+        if (operand instanceof PegNode.BoolLit && opcode == Opcodes.NOT) {
+            return graph.boolLit(!((PegNode.BoolLit) operand).value);
+        }
+        return null;
+    }
+
+    /**
+     * @return the literal that {@code (opcode lhs rhs)} evaluates to, or {@code null} if it can't be folded
+     */
+    static PegNode fold(final PegGraph graph, final int opcode, final PegNode lhs, final PegNode rhs) {
+        if (lhs instanceof PegNode.BoolLit && rhs instanceof PegNode.BoolLit) {
+            final BooleanBinaryOperator op = booleanOps[opcode];
+            return op == null ? null
+                    : graph.boolLit(op.apply(((PegNode.BoolLit) lhs).value, ((PegNode.BoolLit) rhs).value));
+        }
+        final boolean lint = lhs instanceof PegNode.IntLit, rint = rhs instanceof PegNode.IntLit;
+        final boolean llong = lhs instanceof PegNode.LongLit, rlong = rhs instanceof PegNode.LongLit;
+        if (!(lint || llong) || !(rint || rlong)) {
+            return null;
+        }
+        final long a = lint ? ((PegNode.IntLit) lhs).value : ((PegNode.LongLit) lhs).value;
+        final long b = rint ? ((PegNode.IntLit) rhs).value : ((PegNode.LongLit) rhs).value;
+        if (comparisons[opcode] != null) {
+            return graph.boolLit(comparisons[opcode].test(a, b));
+        }
+        try {
+            // A shift's type is that of its left operand; otherwise an int is promoted if the other operand is a long
+            if (lint && (rint || shifts[opcode]) && intOps[opcode] != null) {
+                return graph.intLit(intOps[opcode].applyAsInt((int) a, (int) b));
+            }
+            if (!(lint && rint) && longOps[opcode] != null) {
+                return graph.longLit(longOps[opcode].applyAsLong(a, b));
+            }
+        } catch (ArithmeticException e) {
+            // Division by zero: this throws at runtime, so leave it to the caller's exception handling
+        }
+        return null;
+    }
+}
@@ -1,50 +1,164 @@
 package serializer.peg;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 
 /**
- * This class wraps a list of Id pairs as well as adding some extra sanity checking
- * to ensure that illegal states are never reached.
+ * <p>The node equivalences of a graph, such as the identification of a theta's blank with its continuation.</p>
  *
- * This class ensures that no id is present in more than one equivalence, and that
- * an id is never registered as equivalent to itself
+ * <p>Equivalences are kept two ways: as the list of id pairs in the order they were added, which is what gets
+ * serialized, and as a union-find over ids, which answers whether two ids are equivalent (directly or through a chain
+ * of equivalences) in near-constant time. Both are stored in primitive int arrays indexed by id. The union-find uses
+ * union by size and path halving.</p>
+ *
+ * <p>An id is never registered as equivalent to itself.</p>
  */
 public class Equivalences {
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
-   * a list of equivalent id pairs we've come across
+   * The equivalent id pairs we've come across: pair {@code i} is {@code (firsts[i], seconds[i])}
    */
-  private List<Pair<Integer, Integer>> equivalences = new ArrayList<>();
+  private int[] firsts = new int[INITIAL_CAPACITY];
+  private int[] seconds = new int[INITIAL_CAPACITY];
+  private int size = 0;
 
   /**
-   * A list of ids we've seen before.
+   * {@code parent[id]} is the parent of {@code id} in the union-find forest. Ids past the end of the array, or that
+   * are their own parent, are roots.
    */
-  private Set<Integer> alreadySeenIds = new HashSet<>();
+  private int[] parent = new int[0];
+  /**
+   * {@code classSize[root]} is the number of ids in {@code root}'s class
+   */
+  private int[] classSize = new int[0];
 
   /**
    * Add an equivalence between ids {@code a} and {@code b}
    * @param id1 first id in equivalence
    * @param id2 second id in equivalence
-   * @throws IllegalStateException  when {@code a.equals(b)} OR either a or b is already registered in an equivalence
+   * @throws IllegalStateException  when {@code id1 == id2}
    */
-  public void addEquivalence(Integer id1, Integer id2) {
-    if (alreadySeenIds.contains(id1) || alreadySeenIds.contains(id2)) {
-      throw new IllegalStateException(String.format("Tried to add equivalence (%d, %d), but at least one element is " +
-              "already in another equivalence", id1, id2));
-    }
-
-    if (id1.equals(id2)) {
+  public void addEquivalence(int id1, int id2) {
+    if (id1 == id2) {
       throw new IllegalStateException("Cannot register an id as equivalent to itself");
     }
-    equivalences.add(new Pair<>(id1, id2));
+    if (size == firsts.length) {
+      firsts = Arrays.copyOf(firsts, 2 * size);
+      seconds = Arrays.copyOf(seconds, 2 * size);
+    }
+    firsts[size] = id1;
+    seconds[size] = id2;
+    ++size;
+    union(id1, id2);
   }
 
   /**
-   * @return a copy of the backing equivalences list
+   * @return a copy of the equivalences, in the order they were added
    */
   public List<Pair<Integer, Integer>> getEquivalences() {
-    return new ArrayList<>(equivalences);
+    final List<Pair<Integer, Integer>> result = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      result.add(new Pair<>(firsts[i], seconds[i]));
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of equivalences added so far
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Forget every equivalence added after the first {@code size}
+   * @param size the number of equivalences to keep
+   * @return the equivalences that were removed
+   */
+  public List<Pair<Integer, Integer>> truncate(int size) {
+    final List<Pair<Integer, Integer>> removed = new ArrayList<>();
+    for (int i = size; i < this.size; ++i) {
+      removed.add(new Pair<>(firsts[i], seconds[i]));
+    }
+    this.size = size;
+    // A union-find can't split classes, so rebuild it from the equivalences that are left
+    Arrays.fill(classSize, 1);
+    for (int id = 0; id < parent.length; ++id) {
+      parent[id] = id;
+    }
+    for (int i = 0; i < size; ++i) {
+      union(firsts[i], seconds[i]);
+    }
+    return removed;
+  }
+
+  /**
+   * @return the representative of {@code id}'s class. Two ids are equivalent exactly when they have the same
+   *         representative.
+   */
+  public int find(int id) {
+    if (id >= parent.length) {
+      return id;
+    }
+    while (parent[id] != id) {
+      parent[id] = parent[parent[id]];
+      id = parent[id];
+    }
+    return id;
+  }
+
+  /**
+   * @return {@code true} if {@code id1} and {@code id2} are the same id, or are related by a chain of equivalences
+   */
+  public boolean areEquivalent(int id1, int id2) {
+    return find(id1) == find(id2);
+  }
+
+  /**
+   * @return every class with more than one id, with the ids of each class in increasing order. Classes are ordered
+   *         by their smallest id.
+   */
+  public List<int[]> getClasses() {
+    final int[] members = new int[parent.length];
+    final int[] fill = new int[parent.length];
+    final List<int[]> classes = new ArrayList<>();
+    for (int id = 0; id < parent.length; ++id) {
+      final int root = find(id);
+      if (classSize[root] < 2) continue;
+      if (fill[root] == 0) {
+        // id is the smallest member of its class: allocate the class, and remember it by its root
+        members[root] = classes.size();
+        classes.add(new int[classSize[root]]);
+      }
+      classes.get(members[root])[fill[root]++] = id;
+    }
+    return classes;
+  }
+
+  private void union(final int id1, final int id2) {
+    ensureCapacity(Math.max(id1, id2) + 1);
+    int root1 = find(id1), root2 = find(id2);
+    if (root1 == root2) return;
+    if (classSize[root1] < classSize[root2]) {
+      final int tmp = root1;
+      root1 = root2;
+      root2 = tmp;
+    }
+    parent[root2] = root1;
+    classSize[root1] += classSize[root2];
+  }
+
+  private void ensureCapacity(final int capacity) {
+    if (capacity <= parent.length) return;
+    final int oldLength = parent.length;
+    final int newLength = Math.max(capacity, 2 * oldLength);
+    parent = Arrays.copyOf(parent, newLength);
+    classSize = Arrays.copyOf(classSize, newLength);
+    for (int id = oldLength; id < newLength; ++id) {
+      parent[id] = id;
+      classSize[id] = 1;
+    }
   }
 }
@@ -0,0 +1,158 @@
+package serializer.peg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The conditions under which a method has already exited (for instance, by throwing) at some program point, and
+ * their disjunction, which guards everything the method does after that point.</p>
+ *
+ * <p>The disjunction has the canonical form built by {@link PegGraph#exitConditions}, in which conditions are or-ed
+ * together in increasing id order. Conditions are nearly always created just before they are added, so the newest
+ * condition has the largest id, and the disjunction of a set with one more condition is the disjunction of the old
+ * set or-ed with the new condition. The disjunction is built lazily, and each set extends its predecessor's
+ * disjunction by one node rather than rebuilding it from every condition. Only when a condition is added out of id
+ * order, or two sets are merged, is the disjunction rebuilt from scratch.</p>
+ *
+ * <p>Sets are immutable apart from these caches, and are shared between threads through the contexts of statement
+ * checkpoints. Threads that race to build a disjunction build the same one, since the graph hash-conses the nodes they
+ * create, and a cache only ever goes from unset to set (or, for {@code previous}, from set to cleared), so a thread
+ * that misses another's write just does that work again. The caches are volatile so that a disjunction seen by
+ * another thread is fully built. A disjunction can also become invalid when the graph is rolled back, which only
+ * happens to graphs used by a single thread; {@link #isValid} checks for that before a cached disjunction is used.</p>
+ */
+public final class ExitConditions {
+    private static final ExitConditions NONE = new ExitConditions(PersistentMap.empty(), -1, null, null);
+
+    /**
+     * The conditions, by id
+     */
+    private final PersistentMap<Integer, PegNode> conditions;
+    /**
+     * The largest id in {@code conditions}, or -1 if there are none
+     */
+    private final int maxId;
+    /**
+     * The set this one extends by {@code added}, or {@code null} if the disjunction must be rebuilt from scratch.
+     * Cleared once the disjunction is built, so that older sets can be collected.
+     */
+    private volatile ExitConditions previous;
+    private final PegNode added;
+    /**
+     * The disjunction, or {@code null} if it hasn't been built yet
+     */
+    private volatile PegNode disjunction;
+
+    private ExitConditions(final PersistentMap<Integer, PegNode> conditions, final int maxId,
+                           final ExitConditions previous, final PegNode added) {
+        this.conditions = conditions;
+        this.maxId = maxId;
+        this.previous = previous;
+        this.added = added;
+    }
+
+    public static ExitConditions none() {
+        return NONE;
+    }
+
+    public boolean isEmpty() {
+        return conditions.isEmpty();
+    }
+
+    public int size() {
+        return conditions.size();
+    }
+
+    public boolean contains(final PegNode condition) {
+        return conditions.get(condition.id) == condition;
+    }
+
+    /**
+     * @return these conditions and {@code condition}
+     * @throws IllegalArgumentException if {@code condition} is null
+     */
+    public ExitConditions with(final PegNode condition) {
+        if (condition == null) throw new IllegalArgumentException("Found null condition");
+        final PersistentMap<Integer, PegNode> newConditions = conditions.put(condition.id, condition);
+        if (newConditions == conditions) {
+            return this;
+        }
+        if (condition.id > maxId) {
+            return new ExitConditions(newConditions, condition.id, this, condition);
+        }
+        return new ExitConditions(newConditions, maxId, null, null);
+    }
+
+    /**
+     * @return the conditions in either this or {@code other}
+     */
+    public ExitConditions union(final ExitConditions other) {
+        if (other.conditions.sharesRoot(conditions) || other.isEmpty()) return this;
+        if (isEmpty()) return other;
+        final ExitConditions larger = size() >= other.size() ? this : other;
+        final ExitConditions smaller = larger == this ? other : this;
+        final ExitConditions[] result = {larger};
+        smaller.conditions.forEach((id, condition) -> result[0] = result[0].with(condition));
+        return result[0];
+    }
+
+    /**
+     * @return the disjunction of the conditions, which is {@code false} if there are none
+     */
+    public PegNode disjunction(final PegGraph graph) {
+        final PegNode cached = disjunction;
+        if (isValid(graph, cached)) {
+            return cached;
+        }
+        if (isEmpty()) {
+            return graph.boolLit(false);
+        }
+        // Find the nearest set, if any, whose disjunction this one extends, and extend it one condition at a time
+        final List<ExitConditions> chain = new ArrayList<>();
+        ExitConditions base = this;
+        while (base != null && !base.isEmpty() && !isValid(graph, base.disjunction)) {
+            if (base.added != null && base.added.asBoolean().orElse(false)) {
+                // The disjunction is true, and none of the shorter ones are needed
+                final PegNode result = graph.exitConditions(values());
+                disjunction = result;
+                previous = null;
+                return result;
+            }
+            chain.add(base);
+            base = base.previous;
+        }
+        PegNode result = base == null || base.isEmpty() ? null : base.disjunction;
+        for (int i = chain.size() - 1; i >= 0; --i) {
+            final ExitConditions set = chain.get(i);
+            if (set.previous == null) {
+                result = graph.exitConditions(set.values());
+            } else if (result == null) {
+                // The disjunction of a single condition is the condition
+                result = set.added;
+            } else {
+                result = graph.orExitCondition(result, set.added);
+            }
+            set.disjunction = result;
+            set.previous = null;
+        }
+        return result;
+    }
+
+    private List<PegNode> values() {
+        final List<PegNode> values = new ArrayList<>(conditions.size());
+        conditions.forEach((id, condition) -> values.add(condition));
+        return values;
+    }
+
+    /**
+     * A disjunction built before a {@link PegGraph#rollback} may no longer be in the graph
+     */
+    private static boolean isValid(final PegGraph graph, final PegNode node) {
+        return node != null && graph.idLookup(node.id).orElse(null) == node;
+    }
+
+    @Override
+    public String toString() {
+        return values().toString();
+    }
+}
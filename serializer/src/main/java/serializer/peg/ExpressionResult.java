@@ -88,10 +88,10 @@ public class ExpressionResult {
    * @param thn the then-branch ExpressionResult to use
    * @param els the else-branch ExpressionResult to use
    * @return a new ExpressionResult where context is combined based on guard, and peg is a phi node:
-   *       {@code (phi guard thn.peg els.peg)}
+   *       {@code (phi guard thn.peg els.peg)}, simplified as by {@link PegGraph#simplePhi(int, int, int)}
    */
   public static ExpressionResult combine(final PegNode guard, final ExpressionResult thn, final ExpressionResult els) {
-    return new ExpressionResult(PegNode.phi(guard.id, thn.peg.id, els.peg.id),
+    return new ExpressionResult(guard.graph.simplePhi(guard.id, thn.peg.id, els.peg.id),
             PegContext.combine(thn.context, els.context, guard.id));
   }
 }
@@ -0,0 +1,135 @@
+package serializer.peg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>The set of nodes of a {@code PegGraph} reachable from a collection of root ids, renumbered densely.</p>
+ *
+ * <p>A node is reachable if it is a root, a child of a reachable node, the continuation of a reachable
+ * {@code ThetaNode}, or equivalent (by a node equivalence) to a reachable node. Reachable nodes are renumbered
+ * {@code 0, 1, 2, ...} in increasing order of their original ids, so children still have smaller ids than their
+ * parents.</p>
+ */
+public final class IdRenumbering {
+    private final PegGraph graph;
+    /**
+     * Map original ids to new ids, or to -1 for unreachable ids
+     */
+    private final int[] newIds;
+    private final int size;
+
+    private IdRenumbering(final PegGraph graph, final int[] newIds, final int size) {
+        this.graph = graph;
+        this.newIds = newIds;
+        this.size = size;
+    }
+
+    /**
+     * @param graph the graph to prune
+     * @param roots the ids of the nodes that must be kept, such as subject and mutant pids
+     * @return the renumbering of the nodes of {@code graph} reachable from {@code roots}
+     */
+    public static IdRenumbering reachable(final PegGraph graph, final Collection<Integer> roots) {
+        final int graphSize = graph.size();
+        final boolean[] reached = new boolean[graphSize];
+        final Deque<Integer> worklist = new ArrayDeque<>(roots);
+        // Equivalent nodes are kept together. This usually adds nothing, since a theta's equivalence is between its
+        // blank and its continuation, which are followed anyway.
+        final List<int[]> classes = graph.getEquivalenceClasses();
+        final int[] classOf = new int[graphSize];
+        Arrays.fill(classOf, -1);
+        for (int c = 0; c < classes.size(); ++c) {
+            for (int id : classes.get(c)) {
+                classOf[id] = c;
+            }
+        }
+        while (!worklist.isEmpty()) {
+            final int id = worklist.pop();
+            if (reached[id]) continue;
+            reached[id] = true;
+            final PegNode node = graph.get(id);
+            for (int i = 0; i < node.arity(); ++i) {
+                worklist.push(node.child(i));
+            }
+            if (node instanceof PegNode.ThetaNode.BlankNode) {
+                final Integer continuation = ((PegNode.ThetaNode.BlankNode) node).identifiedNode;
+                if (continuation != null) worklist.push(continuation);
+            }
+            if (classOf[id] >= 0) {
+                for (int equivalent : classes.get(classOf[id])) {
+                    worklist.push(equivalent);
+                }
+            }
+        }
+
+        final int[] newIds = new int[graphSize];
+        Arrays.fill(newIds, -1);
+        int size = 0;
+        for (int id = 0; id < graphSize; ++id) {
+            if (reached[id]) newIds[id] = size++;
+        }
+        return new IdRenumbering(graph, newIds, size);
+    }
+
+    /**
+     * @return the number of reachable nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return {@code true} if the node with original id {@code id} is reachable
+     */
+    public boolean contains(final int id) {
+        return id >= 0 && id < newIds.length && newIds[id] >= 0;
+    }
+
+    /**
+     * @param id the original id of a reachable node
+     * @return the node's new id
+     * @throws IllegalArgumentException if {@code id} isn't reachable
+     */
+    public int get(final int id) {
+        if (!contains(id)) {
+            throw new IllegalArgumentException("Node " + id + " is not reachable");
+        }
+        return newIds[id];
+    }
+
+    /**
+     * @return the reachable nodes, in increasing id order
+     */
+    public List<PegNode> nodes() {
+        final List<PegNode> nodes = new ArrayList<>(size);
+        for (int id = 0; id < newIds.length; ++id) {
+            if (newIds[id] >= 0) nodes.add(graph.get(id));
+        }
+        return nodes;
+    }
+
+    /**
+     * @return {@code node} in the format of {@code node.toString()}, with child ids renumbered
+     */
+    public String toString(final PegNode node) {
+        return node.toString(this::get);
+    }
+
+    /**
+     * @return the equivalences between reachable nodes, renumbered
+     */
+    public List<Pair<Integer, Integer>> renumber(final List<Pair<Integer, Integer>> equivalences) {
+        final List<Pair<Integer, Integer>> result = new ArrayList<>();
+        for (Pair<Integer, Integer> equiv : equivalences) {
+            if (contains(equiv.fst) && contains(equiv.snd)) {
+                result.add(new Pair<>(get(equiv.fst), get(equiv.snd)));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,189 @@
+package serializer.peg;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>The hash-consing table for {@code OpNode}s. Nodes are their own keys: each {@code OpNode} is immutable and
+ * carries a hash of its operator and children that is computed once, at construction. Lookups take the operator and
+ * children as plain arguments and compare them against stored nodes in place, so a lookup that finds an existing
+ * node allocates nothing.</p>
+ *
+ * <p>The table is split into segments, each an open-addressing array of nodes. Lookups never lock: slots are only
+ * ever filled, never cleared or overwritten, and they are read and written with volatile semantics, so a racing
+ * reader either sees an empty slot or a node together with everything its creator did before inserting it, such as
+ * registering it (and so its children) in the graph's id table. A reader that misses must retry with
+ * {@link #lock(int)} held before inserting. A single-threaded table has one segment and is never locked.</p>
+ *
+ * <p>Only a single-threaded table supports {@link #remove}, since removing a node moves other nodes between
+ * slots.</p>
+ */
+final class InternTable {
+    private static final int[] NO_CHILDREN = new int[0];
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    InternTable(final boolean concurrent) {
+        final int nsegments = concurrent ? 32 : 1;
+        segments = new Segment[nsegments];
+        for (int i = 0; i < nsegments; ++i) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(nsegments);
+    }
+
+    /**
+     * @return the lock that must be held while inserting a node with hash {@code hash}
+     */
+    Object lock(final int hash) {
+        return segmentFor(hash);
+    }
+
+    /**
+     * Find the node for {@code opcode} applied to {@code arity} children. When {@code arity <= 3} the children are
+     * given by {@code c0}, {@code c1} and {@code c2} and {@code rest} is {@code null}; otherwise they are given by
+     * {@code rest}.
+     *
+     * @return the node, or {@code null} if there is none
+     */
+    PegNode.OpNode find(final int opcode, final int hash, final int arity,
+                        final int c0, final int c1, final int c2, final int[] rest) {
+        final AtomicReferenceArray<PegNode.OpNode> slots = segmentFor(hash).slots;
+        final int mask = slots.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final PegNode.OpNode node = slots.get(i);
+            if (node == null) return null;
+            if (node.hash == hash && node.opcode == opcode && node.hasChildren(arity, c0, c1, c2, rest)) {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Add a node that {@link #find} has just failed to find. The caller must hold {@code lock(node.hash)}.
+     */
+    void add(final PegNode.OpNode node) {
+        segmentFor(node.hash).add(node);
+    }
+
+    /**
+     * Remove {@code node} from a single-threaded table. Does nothing if {@code node} isn't in the table.
+     */
+    void remove(final PegNode.OpNode node) {
+        segmentFor(node.hash).remove(node);
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static final class Segment {
+        volatile AtomicReferenceArray<PegNode.OpNode> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        int count = 0;
+
+        void add(final PegNode.OpNode node) {
+            AtomicReferenceArray<PegNode.OpNode> table = slots;
+            if (2 * (count + 1) > table.length()) {
+                table = resize(table);
+            }
+            insert(table, node);
+            ++count;
+            slots = table;
+        }
+
+        /**
+         * Remove {@code node}, shifting back any later nodes in its probe sequence so that lookups for them still
+         * succeed
+         */
+        void remove(final PegNode.OpNode node) {
+            final AtomicReferenceArray<PegNode.OpNode> table = slots;
+            final int mask = table.length() - 1;
+            int i = node.hash & mask;
+            while (table.get(i) != node) {
+                if (table.get(i) == null) return;
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; table.get(j) != null; j = (j + 1) & mask) {
+                final int home = table.get(j).hash & mask;
+                // table[j] may move into the hole at i unless its home slot lies cyclically within (i, j]
+                final boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    table.set(i, table.get(j));
+                    i = j;
+                }
+            }
+            table.set(i, null);
+            --count;
+        }
+
+        private static AtomicReferenceArray<PegNode.OpNode> resize(final AtomicReferenceArray<PegNode.OpNode> table) {
+            final AtomicReferenceArray<PegNode.OpNode> grown = new AtomicReferenceArray<>(table.length() * 2);
+            for (int i = 0; i < table.length(); ++i) {
+                final PegNode.OpNode node = table.get(i);
+                if (node != null) insert(grown, node);
+            }
+            return grown;
+        }
+
+        private static void insert(final AtomicReferenceArray<PegNode.OpNode> table, final PegNode.OpNode node) {
+            final int mask = table.length() - 1;
+            int i = node.hash & mask;
+            while (table.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            table.set(i, node);
+        }
+    }
+
+    // Hashing. These must agree with each other: hash(opcode, c0, c1) == hash(opcode, new int[]{c0, c1}), and so on.
+
+    static int hash(final int opcode) {
+        return finish(opcode, 0);
+    }
+
+    static int hash(final int opcode, final int c0) {
+        return finish(31 * opcode + c0, 1);
+    }
+
+    static int hash(final int opcode, final int c0, final int c1) {
+        return finish(31 * (31 * opcode + c0) + c1, 2);
+    }
+
+    static int hash(final int opcode, final int c0, final int c1, final int c2) {
+        return finish(31 * (31 * (31 * opcode + c0) + c1) + c2, 3);
+    }
+
+    static int hash(final int opcode, final int[] children) {
+        int h = opcode;
+        for (int c : children) {
+            h = 31 * h + c;
+        }
+        return finish(h, children.length);
+    }
+
+    /**
+     * Spread the bits of {@code h} so that both the low bits (slot index) and the high bits (segment index) depend on
+     * every child
+     */
+    private static int finish(int h, final int arity) {
+        h ^= arity;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    static int[] children(final int arity, final int c0, final int c1, final int c2, final int[] rest) {
+        switch (arity) {
+            case 0: return NO_CHILDREN;
+            case 1: return new int[]{c0};
+            case 2: return new int[]{c0, c1};
+            case 3: return new int[]{c0, c1, c2};
+            default: return Arrays.copyOf(rest, rest.length);
+        }
+    }
+}
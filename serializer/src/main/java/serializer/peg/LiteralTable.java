@@ -0,0 +1,113 @@
+package serializer.peg;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * <p>A hash-consing table for numeric literals, keyed by the literal's unboxed value. One table holds either
+ * {@code IntLit}s or {@code LongLit}s, never both, so an {@code int} and a {@code long} with the same value are
+ * distinct literals.</p>
+ *
+ * <p>Like {@link InternTable}, this is an open-addressing array of nodes whose keys are read from the (immutable)
+ * nodes themselves, so a lookup that hits allocates nothing and never locks. Slots are read and written with volatile
+ * semantics, so a node found by one thread is also visible in its graph's id table. A miss in a concurrent table
+ * re-checks and inserts with the table locked. As with {@code InternTable}, only a single-threaded table supports
+ * {@link #remove}.</p>
+ */
+final class LiteralTable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean concurrent;
+    private volatile AtomicReferenceArray<PegNode> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private int count = 0;
+
+    LiteralTable(final boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Look up the literal with value {@code value}, creating it with {@code factory} if it doesn't exist.
+     * {@code factory} must register the node with its graph.
+     */
+    PegNode get(final long value, final LongFunction<PegNode> factory) {
+        final PegNode node = find(value);
+        if (node != null) {
+            return node;
+        }
+        if (!concurrent) {
+            return add(factory.apply(value));
+        }
+        synchronized (this) {
+            final PegNode existing = find(value);
+            return existing != null ? existing : add(factory.apply(value));
+        }
+    }
+
+    /**
+     * Remove {@code node} from a single-threaded table. Does nothing if {@code node} isn't in the table.
+     */
+    void remove(final PegNode node) {
+        final AtomicReferenceArray<PegNode> table = slots;
+        final int mask = table.length() - 1;
+        int i = hash(valueOf(node)) & mask;
+        while (table.get(i) != node) {
+            if (table.get(i) == null) return;
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; table.get(j) != null; j = (j + 1) & mask) {
+            final int home = hash(valueOf(table.get(j))) & mask;
+            // table[j] may move into the hole at i unless its home slot lies cyclically within (i, j]
+            final boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                table.set(i, table.get(j));
+                i = j;
+            }
+        }
+        table.set(i, null);
+        --count;
+    }
+
+    private PegNode find(final long value) {
+        final AtomicReferenceArray<PegNode> table = slots;
+        final int mask = table.length() - 1;
+        for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+            final PegNode node = table.get(i);
+            if (node == null) return null;
+            if (valueOf(node) == value) return node;
+        }
+    }
+
+    private PegNode add(final PegNode node) {
+        AtomicReferenceArray<PegNode> table = slots;
+        if (2 * (count + 1) > table.length()) {
+            final AtomicReferenceArray<PegNode> grown = new AtomicReferenceArray<>(table.length() * 2);
+            for (int i = 0; i < table.length(); ++i) {
+                final PegNode n = table.get(i);
+                if (n != null) insert(grown, n);
+            }
+            table = grown;
+        }
+        insert(table, node);
+        ++count;
+        slots = table;
+        return node;
+    }
+
+    private static void insert(final AtomicReferenceArray<PegNode> table, final PegNode node) {
+        final int mask = table.length() - 1;
+        int i = hash(valueOf(node)) & mask;
+        while (table.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        table.set(i, node);
+    }
+
+    private static long valueOf(final PegNode node) {
+        return node instanceof PegNode.IntLit ? ((PegNode.IntLit) node).value : ((PegNode.LongLit) node).value;
+    }
+
+    private static int hash(final long value) {
+        long h = value * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
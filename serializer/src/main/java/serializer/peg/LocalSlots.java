@@ -0,0 +1,96 @@
+package serializer.peg;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.VariableDeclarator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>The local variable slots of one method translation: a dense numbering of the names that the method's contexts
+ * can bind, which are its parameters, its local variables, and the fields it may refer to without {@code this.}.
+ * Contexts store locals by slot, so each name is resolved to a slot once, and whether a name is a field is looked up
+ * by slot rather than in a set of names.</p>
+ *
+ * <p>Slots are assigned up front by {@link #forMethod}, in order of declaration, so parameters come first. A name
+ * the pre-pass didn't see (for instance, in a context that wasn't created from a method declaration) gets the next
+ * free slot when it is first bound. All contexts of a translation share its slots, which are only ever appended
+ * to.</p>
+ */
+final class LocalSlots {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Set<String> fieldNames;
+    /**
+     * {@code fields[slot]} is {@code true} if the slot's name is a field name
+     */
+    private boolean[] fields = new boolean[8];
+
+    LocalSlots(final Set<String> fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    /**
+     * Assign slots to every name {@code declaration} can bind
+     * @param declaration a method (or constructor) declaration, or {@code null} to only assign slots to
+     *                    {@code params} and {@code fieldNames}
+     * @param params the method's parameter names, including {@code this} if the method isn't static
+     * @param fieldNames the names of the fields of the method's class
+     */
+    static LocalSlots forMethod(final Node declaration, final Collection<String> params, final Set<String> fieldNames) {
+        final LocalSlots slots = new LocalSlots(fieldNames);
+        params.forEach(slots::slot);
+        if (declaration != null) {
+            declaration.findAll(VariableDeclarator.class).forEach(v -> slots.slot(v.getNameAsString()));
+        }
+        fieldNames.forEach(slots::slot);
+        return slots;
+    }
+
+    /**
+     * @return slots with the same numbering as these, which can be appended to independently of them
+     */
+    LocalSlots copy() {
+        final LocalSlots copy = new LocalSlots(fieldNames);
+        names.forEach(copy::slot);
+        return copy;
+    }
+
+    /**
+     * @return the slot of {@code name}, assigning it a new one if it doesn't have one yet
+     */
+    int slot(final String name) {
+        final Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        final int newSlot = names.size();
+        slots.put(name, newSlot);
+        names.add(name);
+        if (newSlot == fields.length) {
+            fields = Arrays.copyOf(fields, 2 * newSlot);
+        }
+        fields[newSlot] = fieldNames.contains(name);
+        return newSlot;
+    }
+
+    /**
+     * @return the slot of {@code name}, or -1 if it doesn't have one. A name without a slot has never been bound and
+     *         isn't a field.
+     */
+    int find(final String name) {
+        final Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    String name(final int slot) {
+        return names.get(slot);
+    }
+
+    boolean isField(final int slot) {
+        return fields[slot];
+    }
+}
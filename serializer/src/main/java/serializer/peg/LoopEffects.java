@@ -0,0 +1,87 @@
+package serializer.peg;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.stmt.DoStmt;
+import com.github.javaparser.ast.stmt.ForStmt;
+import com.github.javaparser.ast.stmt.WhileStmt;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>What a loop may change: the local variables it may assign, and whether it may change the heap's state (by writing
+ * a field, calling a method or allocating an object) or its exception status (by evaluating anything that can throw,
+ * or by running a nested loop, whose status is evaluated at its exit). A loop only needs thetas for what it may
+ * change; everything else keeps its value from before the loop.</p>
+ *
+ * <p>This is a syntactic over-approximation over the loop's condition, body and update expressions, including any
+ * nested loops, so that the loop can usually be translated once, with thetas for exactly these effects. The
+ * translator checks it after translating the loop body (see {@code PegStmtVisitor.translateLoop}), and if anything
+ * changed without a theta, translates the loop again with the effects of {@link #all}.</p>
+ */
+final class LoopEffects {
+    final Set<String> variables = new HashSet<>();
+    boolean state = false;
+    boolean status = false;
+
+    /**
+     * @return the effects of a loop that may change any of {@code variables} and the heap's state and status
+     */
+    static LoopEffects all(final Collection<String> variables) {
+        final LoopEffects effects = new LoopEffects();
+        effects.variables.addAll(variables);
+        effects.state = true;
+        effects.status = true;
+        return effects;
+    }
+
+    /**
+     * @param ctx the context on entry to the loop, used to tell fields from locals
+     * @param parts the loop's condition, body and update expressions
+     */
+    static LoopEffects of(final PegContext ctx, final Collection<? extends Node> parts) {
+        final LoopEffects effects = new LoopEffects();
+        for (Node part : parts) {
+            part.walk(node -> effects.visit(ctx, node));
+        }
+        return effects;
+    }
+
+    private void visit(final PegContext ctx, final Node node) {
+        if (node instanceof AssignExpr) {
+            assign(ctx, ((AssignExpr) node).getTarget());
+        } else if (node instanceof UnaryExpr) {
+            final UnaryExpr unary = (UnaryExpr) node;
+            if (unary.getOperator().isPostfix() || unary.getOperator() == UnaryExpr.Operator.PREFIX_INCREMENT
+                    || unary.getOperator() == UnaryExpr.Operator.PREFIX_DECREMENT) {
+                assign(ctx, unary.getExpression());
+            }
+        } else if (node instanceof VariableDeclarator) {
+            variables.add(((VariableDeclarator) node).getNameAsString());
+        } else if (node instanceof MethodCallExpr || node instanceof ObjectCreationExpr) {
+            state = true;
+            status = true;
+        } else if (node instanceof FieldAccessExpr || node instanceof CastExpr) {
+            status = true;
+        } else if (node instanceof WhileStmt || node instanceof DoStmt || node instanceof ForStmt) {
+            status = true;
+        } else if (node instanceof BinaryExpr) {
+            final BinaryExpr.Operator op = ((BinaryExpr) node).getOperator();
+            status |= op == BinaryExpr.Operator.DIVIDE || op == BinaryExpr.Operator.REMAINDER;
+        }
+    }
+
+    private void assign(final PegContext ctx, final Expression target) {
+        if (target.isNameExpr()) {
+            final String name = target.asNameExpr().getNameAsString();
+            variables.add(name);
+            // A field may be written through its simple name, unless a local shadows it
+            state |= ctx.isField(name);
+        } else {
+            state = true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package serializer.peg;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A dense table of {@code PegNode}s indexed directly by id. Ids are allocated densely from 0, so rather than hashing
+ * boxed ids we store nodes in fixed-size chunks: node {@code id} lives at {@code chunks[id >>> CHUNK_BITS][id &
+ * CHUNK_MASK]}. Growing the table only copies the (small) chunk directory and never moves a node, so a reader that
+ * races with a writer that is growing the table never observes a half-copied array.
+ *
+ * Writes to distinct ids may happen concurrently. Creating a chunk or growing the directory is synchronized. Slots
+ * are read and written with volatile semantics, so a thread that looks up a node another thread has just stored (for
+ * instance, the child of a node it found in an {@link InternTable}) sees the node, and not {@code null}.
+ */
+final class NodeTable {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * The chunk directory. This is only ever replaced by a larger copy, and published through a volatile write.
+     */
+    private volatile Chunk[] chunks = new Chunk[16];
+
+    private static final class Chunk extends AtomicReferenceArray<PegNode> {
+        private static final long serialVersionUID = 1L;
+
+        Chunk() {
+            super(CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * @param id a node id
+     * @return the node stored at {@code id}, or {@code null} if no node is stored there
+     */
+    PegNode get(final int id) {
+        if (id < 0) return null;
+        final Chunk[] dir = chunks;
+        final int c = id >>> CHUNK_BITS;
+        if (c >= dir.length) return null;
+        final Chunk chunk = dir[c];
+        return chunk == null ? null : chunk.get(id & CHUNK_MASK);
+    }
+
+    /**
+     * Store {@code node} at index {@code node.id}
+     */
+    void put(final PegNode node) {
+        chunkFor(node.id).set(node.id & CHUNK_MASK, node);
+    }
+
+    /**
+     * Remove the node stored at {@code id}, if any
+     */
+    void remove(final int id) {
+        final Chunk[] dir = chunks;
+        final int c = id >>> CHUNK_BITS;
+        if (c < dir.length && dir[c] != null) {
+            dir[c].set(id & CHUNK_MASK, null);
+        }
+    }
+
+    private Chunk chunkFor(final int id) {
+        final int c = id >>> CHUNK_BITS;
+        final Chunk[] dir = chunks;
+        if (c < dir.length && dir[c] != null) {
+            return dir[c];
+        }
+        return allocateChunk(c);
+    }
+
+    private synchronized Chunk allocateChunk(final int c) {
+        Chunk[] dir = chunks;
+        if (c >= dir.length) {
+            int length = dir.length;
+            while (length <= c) length <<= 1;
+            final Chunk[] grown = new Chunk[length];
+            System.arraycopy(dir, 0, grown, 0, dir.length);
+            dir = grown;
+        }
+        if (dir[c] == null) {
+            dir[c] = new Chunk();
+        }
+        chunks = dir;
+        return dir[c];
+    }
+}
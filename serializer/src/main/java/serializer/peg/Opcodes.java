@@ -0,0 +1,148 @@
+package serializer.peg;
+
+import java.util.Arrays;
+
+/**
+ * <p>The fixed operator symbols that the serializer itself produces, interned to small, dense integer opcodes. Every
+ * {@code OpNode} carries the opcode of its operator rather than the operator's string, so comparing, hashing and
+ * dispatching on operators works on ints. The {@code PegOp} operators keep the same names here.</p>
+ *
+ * <p>These opcodes are shared by all {@code PegGraph}s, and never change once this class is initialized. Other
+ * symbols, such as method, field and variable names, are interned by each graph (see {@link PegGraph#intern}), with
+ * opcodes numbered from {@link #size()}, so that they don't outlive the graph.</p>
+ */
+public final class Opcodes {
+    private static final SymbolTable fixed = new SymbolTable(0);
+
+    public static final int
+    LT = fixed.intern(PegOp.LT),
+    LE = fixed.intern(PegOp.LE),
+    GT = fixed.intern(PegOp.GT),
+    GE = fixed.intern(PegOp.GE),
+    EQ = fixed.intern(PegOp.EQ),
+    NE = fixed.intern(PegOp.NE),
+    PLUS = fixed.intern(PegOp.PLUS),
+    MINUS = fixed.intern(PegOp.MINUS),
+    TIMES = fixed.intern(PegOp.TIMES),
+    DIVIDE = fixed.intern(PegOp.DIVIDE),
+    REMAINDER = fixed.intern(PegOp.REMAINDER),
+    AND = fixed.intern(PegOp.AND),
+    OR = fixed.intern(PegOp.OR),
+    BIN_AND = fixed.intern(PegOp.BIN_AND),
+    BIN_OR = fixed.intern(PegOp.BIN_OR),
+    XOR = fixed.intern(PegOp.XOR),
+    UMINUS = fixed.intern(PegOp.UMINUS),
+    UPLUS = fixed.intern(PegOp.UPLUS),
+    NEG = fixed.intern(PegOp.NEG),
+    POSTINC = fixed.intern(PegOp.POSTINC),
+    POSTDEC = fixed.intern(PegOp.POSTDEC),
+    PREINC = fixed.intern(PegOp.PREINC),
+    PREDEC = fixed.intern(PegOp.PREDEC),
+    PLUS_EQ = fixed.intern(PegOp.PLUS_EQ),
+    MINUS_EQ = fixed.intern(PegOp.MINUS_EQ),
+    TIMES_EQ = fixed.intern(PegOp.TIMES_EQ),
+    DIVIDE_EQ = fixed.intern(PegOp.DIVIDE_EQ),
+    REM_EQ = fixed.intern(PegOp.REM_EQ),
+    ITE = fixed.intern(PegOp.ITE),
+    LSHIFT = fixed.intern(PegOp.LSHIFT),
+    URSHIFT = fixed.intern(PegOp.URSHIFT),
+    SRSHIFT = fixed.intern(PegOp.SRSHIFT),
+    NOT = fixed.intern(PegOp.NOT),
+
+    PHI = ITE,
+    THETA = fixed.intern("theta"),
+    BLANK = fixed.intern("blank"),
+    HEAP = fixed.intern("heap"),
+    UNIT = fixed.intern("unit"),
+    VAR = fixed.intern("var"),
+    DEREFS = fixed.intern("derefs"),
+    PATH = fixed.intern("path"),
+    RD = fixed.intern("rd"),
+    WR = fixed.intern("wr"),
+    INVOKE = fixed.intern("invoke"),
+    ACTUALS = fixed.intern("actuals"),
+    INVOKE_TO_PEG = fixed.intern("invoke->peg"),
+    INVOKE_TO_HEAP_STATE = fixed.intern("invoke->heap-state"),
+    INVOKE_TO_EXCEPTION_STATUS = fixed.intern("invoke->exception-status"),
+    INVOCATION_THREW = fixed.intern("invocation-threw?"),
+    NEW = fixed.intern("new"),
+    INSTANCEOF = fixed.intern("instanceof"),
+    PASS = fixed.intern("pass"),
+    EVAL = fixed.intern("eval"),
+    NULL = fixed.intern("null"),
+    ISNULL = fixed.intern("isnull?"),
+    ISUNIT = fixed.intern("isunit?"),
+    RETURN_NODE = fixed.intern("return-node"),
+    CTX_NIL = fixed.intern("ctx-nil"),
+    CTX_CONS = fixed.intern("ctx-cons"),
+    MAX_EXPR = fixed.intern("max-expr"),
+    ARRAY_NIL = fixed.intern("array-nil"),
+    ARRAY_CONS = fixed.intern("array-cons"),
+    ARRAY_ACCESS = fixed.intern("array-access"),
+    CAN_CAST = fixed.intern("can-cast?"),
+    TYPE_NAME = fixed.intern("type-name"),
+    NIL = fixed.intern("nil"),
+    CONS = fixed.intern("cons"),
+    TYPE_ANNOTATION = fixed.intern("type-annotation"),
+    CAST = fixed.intern("cast");
+
+    /**
+     * Operators whose operands may be swapped without changing their value. PEG values are side-effect free (side
+     * effects are threaded through heaps), so this includes {@code &&} and {@code ||}. {@code +} is not included,
+     * since it is also string concatenation, which doesn't commute (see {@link PegGraph#opNode(int, int, int)}).
+     */
+    private static final boolean[] commutative = new boolean[fixed.size()];
+    /**
+     * {@code mirrored[op]} is the operator {@code op'} with {@code (op a b) == (op' b a)}, or {@code -1}
+     */
+    private static final int[] mirrored = new int[fixed.size()];
+
+    static {
+        for (int op : new int[]{TIMES, EQ, NE, AND, OR, BIN_AND, BIN_OR, XOR}) {
+            commutative[op] = true;
+        }
+        Arrays.fill(mirrored, -1);
+        mirrored[GT] = LT;
+        mirrored[GE] = LE;
+    }
+
+    private Opcodes() {}
+
+    /**
+     * @return {@code true} if {@code opcode} is a binary operator whose operands commute
+     */
+    public static boolean isCommutative(final int opcode) {
+        return opcode < commutative.length && commutative[opcode];
+    }
+
+    /**
+     * @return the opcode of the operator that computes {@code opcode} with its operands swapped, such as
+     *         {@link #LT} for {@link #GT}, or {@code -1} if {@code opcode} is not normalized to a mirrored operator
+     */
+    public static int mirrored(final int opcode) {
+        return opcode < mirrored.length ? mirrored[opcode] : -1;
+    }
+
+    /**
+     * @param symbol an operator symbol
+     * @return the opcode for {@code symbol}, or {@code -1} if it isn't one of the fixed symbols
+     */
+    public static int find(final String symbol) {
+        return fixed.find(symbol);
+    }
+
+    /**
+     * @param opcode a fixed opcode, less than {@link #size()}
+     * @return the symbol for {@code opcode}
+     */
+    public static String symbol(final int opcode) {
+        return fixed.symbol(opcode);
+    }
+
+    /**
+     * @return the number of fixed opcodes. They are the integers {@code 0} through {@code size() - 1}.
+     */
+    public static int size() {
+        return fixed.size();
+    }
+}
@@ -1,19 +1,35 @@
 package serializer.peg;
 
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.expr.FieldAccessExpr;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import java.util.*;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 public class PegContext {
 
-    final public ImmutableMap<String, PegNode> localVariableLookup;
+    /**
+     * The graph that all {@code PegNode}s in this context belong to
+     */
+    final public PegGraph graph;
+    /**
+     * The slots of the names of local variables (including parameters), shared by every context of a translation
+     */
+    final LocalSlots slots;
+    /**
+     * The values of local variables (including parameters), by slot. This is a persistent map, so contexts derived
+     * from this one share all of it that they don't change. Since an {@code Integer}'s hash is its value, the map's
+     * trie is a radix trie over slots.
+     */
+    final private PersistentMap<Integer, PegNode> localVariableLookup;
     final public Set<String> fieldNames;
     final public PegNode.Heap heap;
-    final public ImmutableSet<PegNode> exitConditions;
+    /**
+     * The conditions under which the method has exited before reaching this context
+     */
+    final public ExitConditions exitConditions;
     final public ImmutableMap<String, PegNode> typeMap;
 
     // FIXME The following relies on there being a _unique_ return node in the AST
@@ -24,27 +40,38 @@ public class PegContext {
     }
 
     public PegContext withReturnNode(PegNode rn) {
-        return new PegContext(localVariableLookup, fieldNames, heap, exitConditions, rn, typeMap);
+        return new PegContext(graph, slots, localVariableLookup, fieldNames, heap, exitConditions, rn, typeMap);
     }
 
     /**
-     * An empty context for visiting constants
+     * Create an empty context for visiting constants
+     * @param graph the graph to allocate the context's nodes in
+     * @return an empty context
      */
-    public static final PegContext EMPTY_CTX = new PegContext(
-            new ImmutableMap.Builder<String, PegNode>().build(),
-            new HashSet<>(),
-            PegNode.heap(PegNode.unit().id, PegNode.unit().id),
-            new ImmutableSet.Builder<PegNode>().build(),
-            PegNode.unit(),
-            new ImmutableMap.Builder<String, PegNode>().build());
+    public static PegContext empty(final PegGraph graph) {
+        final Set<String> fieldNames = new HashSet<>();
+        return new PegContext(
+                graph,
+                new LocalSlots(fieldNames),
+                PersistentMap.empty(),
+                fieldNames,
+                graph.heap(graph.unit().id, graph.unit().id),
+                ExitConditions.none(),
+                graph.unit(),
+                new ImmutableMap.Builder<String, PegNode>().build());
+    }
 
 
-    private PegContext(final ImmutableMap<String, PegNode> localVariableLookup,
+    private PegContext(final PegGraph graph,
+                       final LocalSlots slots,
+                       final PersistentMap<Integer, PegNode> localVariableLookup,
                        final Set<String> fieldNames,
                        final PegNode.Heap heap,
-                       final ImmutableSet<PegNode> exitConditions,
+                       final ExitConditions exitConditions,
                        final PegNode returnNode,
                        final ImmutableMap<String, PegNode> typeMap) {
+        this.graph = graph;
+        this.slots = slots;
         this.localVariableLookup = localVariableLookup;
         this.fieldNames = fieldNames;
         this.heap = heap;
@@ -62,30 +89,24 @@ public class PegContext {
      */
     public static PegContext combine(PegContext c1, PegContext c2, Integer guardId) {
         assert c1.fieldNames == c2.fieldNames;  // TODO: is this true? This should be true
-        final ImmutableSet<String> domain = c1.localVariableLookup.keySet().stream().filter(c2.localVariableLookup::containsKey)
-                .collect(Collectors.collectingAndThen(Collectors.toSet(), ImmutableSet::copyOf));
+        assert c1.graph == c2.graph;
+        assert c1.slots == c2.slots;
+        final PegGraph graph = c1.graph;
 
-        final PegNode.Heap combinedHeap = PegNode.heap(
-                PegNode.phi(guardId, c1.heap.state, c2.heap.state).id,
-                PegNode.phi(guardId, c1.heap.status, c2.heap.status).id
-        );
+        final PegNode.Heap combinedHeap = graph.simplePhi(guardId, c1.heap, c2.heap);
 
-        final ImmutableSet<PegNode> combinedExitConditions = (new ImmutableSet.Builder<PegNode>())
-                .addAll(c1.exitConditions)
-                .addAll(c2.exitConditions).build();
+        final ExitConditions combinedExitConditions = c1.exitConditions.union(c2.exitConditions);
 
         if (c1.getReturnNode() != null && c2.getReturnNode() != null) throw new RuntimeException("InvalidReturn");
         final PegNode returnNode = Optional.ofNullable(c1.returnNode).orElse(c2.returnNode);
 
         // TODO: How to combine type maps?
         assert c1.typeMap == c2.typeMap;
-        return initMap(
-                domain,
-                p -> PegNode.phi(guardId, c1.getLocalVar(p).id, c2.getLocalVar(p).id),
-                c1.fieldNames,
-                combinedHeap,
-                combinedExitConditions,
-                returnNode,
+        // Only variables defined on both branches survive the merge. Variables the branches didn't both change are
+        // shared by their maps, and are kept without looking at them.
+        final PersistentMap<Integer, PegNode> locals = c1.localVariableLookup.intersect(c2.localVariableLookup,
+                (thn, els) -> graph.simplePhi(guardId, thn.id, els.id));
+        return new PegContext(graph, c1.slots, locals, c1.fieldNames, combinedHeap, combinedExitConditions, returnNode,
                 c1.typeMap);
     }
 
@@ -99,26 +120,46 @@ public class PegContext {
     }
 
     public boolean isUnshadowedField(final String key) {
-      return isField(key) && !localVariableLookup.containsKey(key);
+      final int slot = slots.find(key);
+      return slot >= 0 && slots.isField(slot) && !localVariableLookup.containsKey(slot);
+    }
+
+    /**
+     * @return the names of the local variables (including parameters) that are bound in this context
+     */
+    public ImmutableSet<String> getLocalNames() {
+        final ImmutableSet.Builder<String> names = ImmutableSet.builderWithExpectedSize(localVariableLookup.size());
+        localVariableLookup.forEach((slot, value) -> names.add(slots.name(slot)));
+        return names.build();
+    }
+
+    /**
+     * @return {@code true} if local variable (or parameter) {@code key} is bound in this context
+     */
+    public boolean isLocalVar(final String key) {
+        final int slot = slots.find(key);
+        return slot >= 0 && localVariableLookup.containsKey(slot);
     }
 
     /**
      * Lookup a key in the context. This key can correspond to a {@code parameter} or a {@code field}
      * @param key the method parameter or field name to look up in this context
-     * @return the associated {@code PegNode} if it exists, and PegNode.unit() otherwise.
+     * @return the associated {@code PegNode} if it exists, and {@code unit} otherwise.
      */
     public PegNode getLocalVar(String key) {
-        if (localVariableLookup.containsKey(key)) {
-            return localVariableLookup.get(key);
+        final int slot = slots.find(key);
+        final PegNode value = slot < 0 ? null : localVariableLookup.get(slot);
+        if (value != null) {
+            return value;
         }
         if ("this".equals(key)) {
-            return PegNode.var("this", PegNode.nil().id);
+            return graph.var("this", graph.nil().id);
         }
         if (isUnshadowedField(key)) {
             // Todo: check for static fields/etc
-            return PegNode.rd(PegNode.path(getLocalVar("this").id, key).id, heap.id);
+            return graph.rd(graph.path(getLocalVar("this").id, key).id, heap.id);
         }
-        return PegNode.unit();
+        return graph.unit();
     }
 
     /**
@@ -131,18 +172,11 @@ public class PegContext {
         if (key == null) throw new IllegalArgumentException("Cannot add null key to serializer.peg.PegContext");
         if (val == null) throw new IllegalArgumentException("Cannot add null val to serializer.peg.PegContext");
 
-        final ImmutableMap.Builder<String, PegNode> b = new ImmutableMap.Builder<>();
-        b.put(key, val);
-        if (localVariableLookup.containsKey(key)) {
-            for (ImmutableMap.Entry<String, PegNode> e : localVariableLookup.entrySet()) {
-                if (! key.equals(e.getKey())) {
-                    b.put(e);
-                }
-            }
-        } else {
-            b.putAll(localVariableLookup);
+        final PersistentMap<Integer, PegNode> locals = localVariableLookup.put(slots.slot(key), val);
+        if (locals == localVariableLookup) {
+            return this;
         }
-        return new PegContext(b.build(), fieldNames, heap, exitConditions, returnNode, typeMap);
+        return new PegContext(graph, slots, locals, fieldNames, heap, exitConditions, returnNode, typeMap);
     }
 
     /**
@@ -156,7 +190,7 @@ public class PegContext {
       if (exitConditions.isEmpty()) {
           return setLocalVar(key, val);
       }
-      return setLocalVar(key, PegNode.phi(PegNode.exitConditions(exitConditions).id, getLocalVar(key).id, val.id));
+      return setLocalVar(key, graph.simplePhi(exitConditions.disjunction(graph).id, getLocalVar(key).id, val.id));
     }
 
     public ExpressionResult performWrite(final FieldAccessExpr fieldAccess,
@@ -164,7 +198,7 @@ public class PegContext {
                                          final PegExprVisitor visitor)
     {
         final ExpressionResult er = getPathFromFieldAccessExpr(fieldAccess, visitor);
-        return er.withHeap(PegNode.wrHeap(er.peg.id, value.id, er.context.heap));
+        return er.withHeap(graph.wrHeap(er.peg.id, value.id, er.context.heap));
 
     }
 
@@ -185,7 +219,17 @@ public class PegContext {
             fa = fa.getScope().toFieldAccessExpr().orElseThrow(() -> new RuntimeException("GetPathFail"));
         }
         final ExpressionResult base = fa.getScope().accept(visitor, this);
-        return PegNode.path(base.peg.id, derefs.toString()).exprResult(this);
+        return graph.path(base.peg.id, derefs.toString()).exprResult(this);
+    }
+
+    /**
+     * @return a context identical to this one, but with a copy of its slots, so that names first bound in contexts
+     *         derived from it get slots without touching the slots of this context's translation (which another
+     *         thread may be using)
+     */
+    PegContext withCopiedSlots() {
+        return new PegContext(graph, slots.copy(), localVariableLookup, fieldNames, heap, exitConditions, returnNode,
+                typeMap);
     }
 
     /**
@@ -195,11 +239,11 @@ public class PegContext {
      *         in {@code heap}'s value
      */
     public PegContext withHeap(final PegNode.Heap heap) {
-      return new PegContext(localVariableLookup, fieldNames, heap, exitConditions, returnNode, typeMap);
+      return new PegContext(graph, slots, localVariableLookup, fieldNames, heap, exitConditions, returnNode, typeMap);
     }
 
     public PegContext withTypeMap(Map<String, PegNode> typeMap) {
-        return new PegContext(localVariableLookup, fieldNames, heap, exitConditions, returnNode, ImmutableMap.copyOf(typeMap));
+        return new PegContext(graph, slots, localVariableLookup, fieldNames, heap, exitConditions, returnNode, ImmutableMap.copyOf(typeMap));
     }
 
     /**
@@ -208,11 +252,11 @@ public class PegContext {
      * @return the new PegContext with updated exitConditions
      */
     public PegContext withExitCondition(final PegNode exitCondition) {
-      ImmutableSet.Builder<PegNode> builder = ImmutableSet.builder();
-      builder.addAll(exitConditions);
-      builder.add(exitCondition);
-      final ImmutableSet<PegNode> exitConditions = builder.build();
-      return new PegContext(localVariableLookup, fieldNames, heap, exitConditions, returnNode, typeMap);
+      final ExitConditions exitConditions = this.exitConditions.with(exitCondition);
+      if (exitConditions == this.exitConditions) {
+          return this;
+      }
+      return new PegContext(graph, slots, localVariableLookup, fieldNames, heap, exitConditions, returnNode, typeMap);
     }
 
     /**
@@ -222,51 +266,40 @@ public class PegContext {
      * @return a new PegContext with the new exceptional condition
      */
     public PegContext withExceptionCondition(final PegNode condition, final PegNode exception) {
-        PegNode.Heap newHeap;
-        // Check for the case of `(phi (isunit? unit) thn els)` and transform to `thn`
-        if (heap.status == PegNode.unit().id) {
-            newHeap = heap.withStatus(PegNode.phi(condition.id, exception.id, PegNode.unit().id).id);
-        }
-        // Update the status to check if we already have an exception. If so, pass that exceptional status on.
-        // Otherwise, mark the current status as {@code exception}
-        // (phi (isunit? heap.status                            ;; If the status is unit, nothing thrown yet
-        //               (phi condition.id exception.id unit)   ;; ...so check for exception
-        //               heap.status)                           ;; Otherwise, use that status
-        else {
-            newHeap = heap.withStatus(
-                    PegNode.phi(
-                            PegNode.isunit(heap.status).id,
-                            PegNode.phi(condition.id, exception.id, PegNode.unit().id).id,
-                            heap.status).id
-            );
-        }
+        final PegNode.Heap newHeap = heap.withStatus(graph.guardedException(heap.status, condition, exception));
         return withExitCondition(condition).withHeap(newHeap);
     }
 
     /**
      * Initialize a map from a domain and a function on that domain
+     * @param graph the graph that the new {@code PegContext}'s nodes belong to
      * @param keys the keys that the new {@code PegContext} will operate over
      * @param f  function to combine peg nodes under a guard
      * @param fieldNames names of fields used by this method
      * @param heap the heap value to use in the resulting {@code PegContext}
      * @return a new context mapping all keys to values as specified by {@code f}
      */
-    public static PegContext initMap(final Set<String> keys,
+    public static PegContext initMap(final PegGraph graph,
+                                     final Set<String> keys,
                                      final Function<String, PegNode> f,
                                      final Set<String> fieldNames,
                                      final PegNode.Heap heap,
-                                     final ImmutableSet<PegNode> exitConditions,
+                                     final ExitConditions exitConditions,
                                      final PegNode returnNode,
                                      final ImmutableMap<String, PegNode> typeMap)
     {
 
-        final ImmutableMap.Builder<String, PegNode> builder = ImmutableMap.builderWithExpectedSize(keys.size());
-        keys.forEach(k -> builder.put(k, f.apply(k)));
-        return new PegContext(builder.build(), fieldNames, heap, exitConditions, returnNode, typeMap);
+        final LocalSlots slots = LocalSlots.forMethod(null, keys, fieldNames);
+        PersistentMap<Integer, PegNode> locals = PersistentMap.empty();
+        for (String k : keys) {
+            locals = locals.put(slots.slot(k), f.apply(k));
+        }
+        return new PegContext(graph, slots, locals, fieldNames, heap, exitConditions, returnNode, typeMap);
     }
 
     /**
      * Initialize a context with a set of parameters and fieldNames. This is how a new context should be created
+     * @param graph the graph to allocate the context's nodes in
      * @param fieldNames the names of all fields accessed by this method. This is used for implicit {@code this}
      *                  dereferences, so it suffices to only include those field names that are referenced without a
      *                  prefix of {@code this}
@@ -276,20 +309,37 @@ public class PegContext {
      * particular, each paramter name {@code name} will map to a {@code (var name)}.
      *
      */
-    public static PegContext initWithParams(final Set<String> fieldNames,
+    public static PegContext initWithParams(final PegGraph graph,
+                                            final Set<String> fieldNames,
+                                            final List<String> params,
+                                            final Map<String, PegNode> typeMap) {
+        return initWithParams(graph, null, fieldNames, params, typeMap);
+    }
+
+    /**
+     * Initialize a context for translating {@code declaration}, as {@link #initWithParams(PegGraph, Set, List, Map)}
+     * does. Every name {@code declaration} declares is assigned a local variable slot up front.
+     * @param declaration the method or constructor declaration to be translated
+     */
+    public static PegContext initWithParams(final PegGraph graph,
+                                            final Node declaration,
+                                            final Set<String> fieldNames,
                                             final List<String> params,
                                             final Map<String, PegNode> typeMap) {
-        final ImmutableMap.Builder<String, PegNode> builder = ImmutableMap.builder();
+        final LocalSlots slots = LocalSlots.forMethod(declaration, params, fieldNames);
+        PersistentMap<Integer, PegNode> locals = PersistentMap.empty();
         for (String param : params) {
-            final PegNode tpAnnot = typeMap.containsKey(param) ?  typeMap.get(param) : PegNode.nil();
-            builder.put(param, PegNode.var(param, tpAnnot.id));
+            final PegNode tpAnnot = typeMap.containsKey(param) ?  typeMap.get(param) : graph.nil();
+            locals = locals.put(slots.slot(param), graph.var(param, tpAnnot.id));
         }
 
         return new PegContext(
-                builder.build(),
+                graph,
+                slots,
+                locals,
                 fieldNames,
-                PegNode.initialHeap(),
-                ImmutableSet.of(),
+                graph.initialHeap(),
+                ExitConditions.none(),
                 null,
                 ImmutableMap.copyOf(typeMap));
     }
@@ -300,9 +350,9 @@ public class PegContext {
      */
     public Optional<PegNode> asPeg() {
         if (returnNode == null) {
-            return Optional.of(PegNode.returnNode(PegNode.unit().id, heap.id));
+            return Optional.of(graph.returnNode(graph.unit().id, heap.id));
         }
-        return Optional.of(PegNode.returnNode(returnNode.id, heap.id));
+        return Optional.of(graph.returnNode(returnNode.id, heap.id));
     }
 
     public ExpressionResult exprResult(final PegNode peg) {
@@ -310,7 +360,7 @@ public class PegContext {
     }
 
     public ExpressionResult exprResult() {
-        return exprResult(PegNode.unit());
+        return exprResult(graph.unit());
     }
 
     /**
@@ -319,13 +369,13 @@ public class PegContext {
      * @return A sorted linked list of key-value pairs
      */
     public PegNode asPegNode() {
-        final List<String> sortedLocals = new ArrayList<>(localVariableLookup.keySet());
+        final List<String> sortedLocals = new ArrayList<>(getLocalNames());
         sortedLocals.sort(null);
-        PegNode ctx= PegNode.nilContext();
+        PegNode ctx= graph.nilContext();
         for (int i = sortedLocals.size() - 1; i >= 0; i--) {
             final String local = sortedLocals.get(i);
-            final PegNode val = localVariableLookup.get(local);
-            ctx = PegNode.consContext(local, val.id, ctx.id);
+            final PegNode val = getLocalVar(local);
+            ctx = graph.consContext(local, val.id, ctx.id);
         }
         return ctx;
     }
@@ -1,9 +1,17 @@
 package serializer.peg;
 
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.expr.*;
 import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
 import com.github.javaparser.ast.type.ReferenceType;
+import com.github.javaparser.ast.type.Type;
+import com.google.common.primitives.Ints;
 import serializer.Util;
 
 import java.util.ArrayList;
@@ -14,6 +22,15 @@ import java.util.Stack;
 public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVisitorAdapter<ExpressionResult,
         PegContext> {
 
+    /**
+     * The graph that this visitor allocates {@code PegNode}s in
+     */
+    final PegGraph graph;
+
+    public PegExprVisitor(final PegGraph graph) {
+        this.graph = graph;
+    }
+
     @Override
     public ExpressionResult visit(BinaryExpr n, PegContext context) {
         final ExpressionResult lhs = n.getLeft() .accept(this, context);
@@ -21,159 +38,85 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
 
         if (n.getOperator() == BinaryExpr.Operator.DIVIDE || n.getOperator() == BinaryExpr.Operator.REMAINDER) {
             // If this is a division or a remainder operator, add a check for div-by-zero
-            final PegNode denominatorIsZero = PegNode.opNode(PegOp.EQ, rhs.peg.id, PegNode.intLit(0).id);
+            final PegNode denominatorIsZero = graph.opNode(Opcodes.EQ, rhs.peg.id, graph.intLit(0).id);
             PegNode throwCond;
             if (rhs.context.exitConditions.isEmpty()) {
                 throwCond = denominatorIsZero;
             } else {
                 // (&& haven-not-exited denominator-is-zero)
-                final PegNode haveNotExited = PegNode.opNode(PegOp.NOT, PegNode.exitConditions(rhs.context.exitConditions).id);
-                throwCond = PegNode.opNode(PegOp.AND, haveNotExited.id, denominatorIsZero.id);
+                final PegNode haveNotExited = graph.not(rhs.context.exitConditions.disjunction(graph).id);
+                throwCond = graph.and(haveNotExited.id, denominatorIsZero.id);
             }
-            rhs.withContext(rhs.context.withExceptionCondition(throwCond, PegNode.exception("java.lang.DivideByZeroError")));
+            rhs.withContext(rhs.context.withExceptionCondition(throwCond, graph.exception("java.lang.DivideByZeroError")));
         }
 
         return handleBinExpr(n, lhs, rhs);
     }
 
     /**
-     * Handle pure binary expressions. This attempts to do constant folding
+     * Handle pure binary expressions. Operators applied to literals are folded by the graph (see
+     * {@link ConstantFolder})
      * @param n operator
      * @param lhs left expr
      * @param rhs right expr
      * @return PegNode representing this binary expression
      */
     private ExpressionResult handleBinExpr(BinaryExpr n, ExpressionResult lhs, ExpressionResult rhs) {
-        Optional<Integer> li = lhs.peg.asInteger(), ri = rhs.peg.asInteger();
-        Optional<Boolean> lb = lhs.peg.asBoolean(), rb = rhs.peg.asBoolean();
-
         switch (n.getOperator()) {
             case OR:
             {
-                if (lb.isPresent() && rb.isPresent()) {
-                    return PegNode.boolLit(lb.get() || rb.get()).exprResult(rhs.context);
-                }
                 // The phi node should check if the lhs is true.
                 //    If it is, return true,
                 //    otherwise return the rhs
-                final PegNode or = PegNode.opNode("||", lhs.peg.id, rhs.peg.id);
+                final PegNode or = graph.or(lhs.peg.id, rhs.peg.id);
                 PegContext combined = PegContext.combine(lhs.context, rhs.context, lhs.peg.id);
                 return or.exprResult(combined);
             }
             case AND:
             {
-                if (lb.isPresent() && rb.isPresent()) {
-                    return PegNode.boolLit(lb.get() && rb.get()).exprResult(rhs.context);
-                }
-                final PegNode and = PegNode.opNode("&&", lhs.peg.id, rhs.peg.id);
+                final PegNode and = graph.and(lhs.peg.id, rhs.peg.id);
                 PegContext combined = PegContext.combine(rhs.context, lhs.context, lhs.peg.id);
                 return and.exprResult(combined);
             }
-            case BINARY_OR:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() | ri.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.BIN_OR, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case BINARY_AND:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() & ri.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.BIN_AND, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case XOR:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() ^ ri.get()).exprResult(rhs.context);
-                }
-                if (lb.isPresent() && rb.isPresent()) {
-                    return PegNode.boolLit(lb.get() ^ rb.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.XOR, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case EQUALS:
-            {
-                if (lhs.equals(rhs)) {
-                    return PegNode.boolLit(true).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.EQ, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case NOT_EQUALS:
-            {
-                if (lhs.equals(rhs)) {
-                    return PegNode.boolLit(false).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.NE, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case LESS:
-                return PegNode.opNodeFromPegs(PegOp.LT, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case GREATER:
-                return PegNode.opNodeFromPegs(PegOp.GT, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case LESS_EQUALS:
-                return PegNode.opNodeFromPegs(PegOp.LE, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case GREATER_EQUALS:
-                return PegNode.opNodeFromPegs(PegOp.GE, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case LEFT_SHIFT:
-                return PegNode.opNodeFromPegs(PegOp.LSHIFT, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case SIGNED_RIGHT_SHIFT:
-                return PegNode.opNodeFromPegs(PegOp.SRSHIFT, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case UNSIGNED_RIGHT_SHIFT:
-                return PegNode.opNodeFromPegs(PegOp.URSHIFT, lhs.peg, rhs.peg).exprResult(rhs.context);
-            case PLUS:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() + ri.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.PLUS, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case MINUS:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() - ri.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.MINUS, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
-            case MULTIPLY:
-            {
-                if (li.isPresent() && ri.isPresent()) {
-                    return PegNode.intLit(li.get() * ri.get()).exprResult(rhs.context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.TIMES, lhs.peg, rhs.peg).exprResult(rhs.context);
-            }
             case DIVIDE:
-            {
-                if (li.isPresent() && ri.isPresent() ) {
-                    if (ri.get() != 0) {
-                        return PegNode.intLit(li.get() / ri.get()).exprResult(rhs.context);
-                    } else {
-                        // This will never be evaluated since we are dividing by zero
-                        return PegNode.unit().exprResult(rhs.context);
-                    }
-                }
-                final PegNode cond =  PegNode.opNode(PegOp.EQ, rhs.peg.id, PegNode.intLit(0).id);
-                final PegNode value = PegNode.opNode(PegOp.DIVIDE, lhs.peg.id, rhs.peg.id);
-                return PegNode.phi(cond.id, PegNode.unit().id, value.id).exprResult(rhs.context);
-            }
             case REMAINDER:
             {
-                if (li.isPresent() && ri.isPresent()) {
-                    if (ri.get() != 0) {
-                        return PegNode.intLit(li.get() % ri.get()).exprResult(rhs.context);
-                    } else {
-                        // This will never be evaluated since we are dividing by zero
-                        return PegNode.unit().exprResult(rhs.context);
-                    }
-                }
-                final PegNode cond =  PegNode.opNode(PegOp.EQ, rhs.peg.id, PegNode.intLit(0).id);
-                final PegNode value = PegNode.opNode(PegOp.REMAINDER, lhs.peg.id, rhs.peg.id);
-                return PegNode.phi(cond.id, PegNode.unit().id, value.id).exprResult(rhs.context);
+                // A division by the literal zero folds to unit: it will never be evaluated
+                final int op = n.getOperator() == BinaryExpr.Operator.DIVIDE ? Opcodes.DIVIDE : Opcodes.REMAINDER;
+                final PegNode cond =  graph.opNode(Opcodes.EQ, rhs.peg.id, graph.intLit(0).id);
+                final PegNode value = graph.opNode(op, lhs.peg.id, rhs.peg.id);
+                return graph.simplePhi(cond.id, graph.unit().id, value.id).exprResult(rhs.context);
             }
             default:
-                throw new IllegalStateException("Unrecognized binary operator: " + n.getOperator());
+                return graph.opNode(binaryOpcode(n.getOperator()), lhs.peg.id, rhs.peg.id).exprResult(rhs.context);
+        }
+    }
+
+    /**
+     * @return the opcode of a binary operator that has no control flow
+     */
+    private static int binaryOpcode(final BinaryExpr.Operator op) {
+        switch (op) {
+            case BINARY_OR: return Opcodes.BIN_OR;
+            case BINARY_AND: return Opcodes.BIN_AND;
+            case XOR: return Opcodes.XOR;
+            case EQUALS: return Opcodes.EQ;
+            case NOT_EQUALS: return Opcodes.NE;
+            case LESS: return Opcodes.LT;
+            case GREATER: return Opcodes.GT;
+            case LESS_EQUALS: return Opcodes.LE;
+            case GREATER_EQUALS: return Opcodes.GE;
+            case LEFT_SHIFT: return Opcodes.LSHIFT;
+            case SIGNED_RIGHT_SHIFT: return Opcodes.SRSHIFT;
+            case UNSIGNED_RIGHT_SHIFT: return Opcodes.URSHIFT;
+            case PLUS: return Opcodes.PLUS;
+            case MINUS: return Opcodes.MINUS;
+            case MULTIPLY: return Opcodes.TIMES;
+            default:
+                throw new IllegalStateException("Unrecognized binary operator: " + op);
         }
     }
+
     @Override
     public ExpressionResult visit(UnaryExpr n, PegContext context) {
         // Special case: when Integer.MIN is encountered we will get a parse error by recursively visiting the int
@@ -182,12 +125,12 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
             if (e.isPresent()) {
                 IntegerLiteralExpr i = e.get();
                 Optional<Integer> parsed = Util.parseInt(String.format("-%s", i.getValue()));
-                if (parsed.isPresent()) return PegNode.intLit(parsed.get()).exprResult(context);
+                if (parsed.isPresent()) return graph.intLit(parsed.get()).exprResult(context);
                 throw new IllegalStateException("Invalid integer literal: " + i.getValue());
             }
 
             final ExpressionResult er = n.getExpression().accept(this, context);
-            return PegNode.opNodeFromPegs(PegOp.UMINUS, er.peg).exprResult(er.context);
+            return graph.opNodeFromPegs(Opcodes.UMINUS, er.peg).exprResult(er.context);
         }
 
         final ExpressionResult er = n.getExpression().accept(this, context);
@@ -197,20 +140,10 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
         switch (n.getOperator()) {
             case PLUS:
                 return peg.exprResult(context);
-            case LOGICAL_COMPLEMENT: {
-                final Optional<Boolean> val = peg.asBoolean();
-                if (val.isPresent()) {
-                    return PegNode.boolLit(! val.get()).exprResult(context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.NOT, peg).exprResult(context);
-            }
-            case BITWISE_COMPLEMENT: {
-                final Optional<Integer> val = peg.asInteger();
-                if (val.isPresent()) {
-                    return PegNode.intLit(~val.get()).exprResult(context);
-                }
-                return PegNode.opNodeFromPegs(PegOp.NEG, peg).exprResult(context);
-            }
+            case LOGICAL_COMPLEMENT:
+                return graph.not(peg.id).exprResult(context);
+            case BITWISE_COMPLEMENT:
+                return graph.opNodeFromPegs(Opcodes.NEG, peg).exprResult(context);
             case PREFIX_INCREMENT:
             case PREFIX_DECREMENT:
             case POSTFIX_INCREMENT:
@@ -225,20 +158,20 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
                                                        final ExpressionResult er,
                                                        final UnaryExpr.Operator op)
     {
-        String pegOp;
+        int pegOp;
         switch (op) {
         case POSTFIX_DECREMENT:
         case PREFIX_DECREMENT:
-            pegOp = "-";
+            pegOp = Opcodes.MINUS;
             break;
         case POSTFIX_INCREMENT:
         case PREFIX_INCREMENT:
-            pegOp = "+";
+            pegOp = Opcodes.PLUS;
             break;
         default:
             throw new IllegalArgumentException("Operator " + op + " is not prefix/postfix-increment/decrement");
         }
-        final PegNode value = PegNode.opNode(pegOp, er.peg.id, PegNode.intLit(1).id);
+        final PegNode value = graph.opNode(pegOp, er.peg.id, graph.intLit(1).id);
         if (op.isPrefix()) {
             return performAssign(target, value, er.context);
         }
@@ -247,7 +180,7 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
 
     @Override
     public ExpressionResult visit(VariableDeclarationExpr n, PegContext arg) {
-        ExpressionResult er = arg.exprResult(PegNode.unit());
+        ExpressionResult er = arg.exprResult(graph.unit());
         for (VariableDeclarator vd : n.getVariables()) {
             er = vd.accept(this, er.context);
         }
@@ -257,14 +190,14 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
     @Override
     public ExpressionResult visit(VariableDeclarator n, PegContext arg) {
         final String name = n.getNameAsString();
-        arg = arg.setLocalVar(name, PegNode.unit());
+        arg = arg.setLocalVar(name, graph.unit());
         final Optional<Expression> initializer = n.getInitializer();
         if (initializer.isPresent()) {
             final ExpressionResult er = initializer.get().accept(this, arg);
-            arg = er.context.performAssignLocalVar(name, er.peg);
+            arg = er.context.performAssignLocalVar(name, widen(er.peg, Optional.of(n.getType())));
 
         }
-        return arg.exprResult(PegNode.unit());
+        return arg.exprResult(graph.unit());
     }
 
     @Override
@@ -277,7 +210,7 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
 
     @Override
     public ExpressionResult visit(BooleanLiteralExpr n, PegContext context) {
-        return PegNode.boolLit(n.getValue()).exprResult(context);
+        return graph.boolLit(n.getValue()).exprResult(context);
     }
 
     @Override
@@ -289,20 +222,20 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
     public ExpressionResult visit(IntegerLiteralExpr n, PegContext context) {
 
         Optional<Integer> parsed = Util.parseInt(String.format("%s", n.getValue()));
-        if (parsed.isPresent()) return PegNode.intLit(parsed.get()).exprResult(context);
+        if (parsed.isPresent()) return graph.intLit(parsed.get()).exprResult(context);
         throw new IllegalStateException("Invalid integer literal: " + n.getValue());
     }
 
     @Override
     public ExpressionResult visit(LongLiteralExpr n, PegContext arg) {
         Optional<Long> parsed = Util.parseLong(String.format("%s", n.getValue()));
-        if (parsed.isPresent()) return PegNode.longLit(parsed.get()).exprResult(arg);
+        if (parsed.isPresent()) return graph.longLit(parsed.get()).exprResult(arg);
         throw new IllegalStateException("Invalid long literal: " + n.getValue());
     }
 
     @Override
     public ExpressionResult visit(StringLiteralExpr n, PegContext arg) {
-        return PegNode.stringLit(n.getValue()).exprResult(arg);
+        return graph.stringLit(n.getValue()).exprResult(arg);
     }
 
     @Override
@@ -323,7 +256,7 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
             return (b.get() ? thn : els).exprResult(b.get() ? thnEr.context : elsEr.context);
         }
         final PegContext combined = PegContext.combine(thnEr.context, elsEr.context, cond.id);
-        return PegNode.opNode(PegOp.ITE, cond.id, thn.id, els.id).exprResult(combined);
+        return graph.opNode(Opcodes.ITE, cond.id, thn.id, els.id).exprResult(combined);
     }
 
     @Override
@@ -334,11 +267,11 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
     @Override
     public ExpressionResult visit(FieldAccessExpr n, PegContext arg) {
         final ExpressionResult scope = n.getScope().accept(this, arg);
-        final PegNode path = PegNode.path(scope.peg.id, n.getNameAsString());
-        final PegNode isnull = PegNode.isnull(scope.peg.id);
-        final PegNode npe = PegNode.exception("java.lang.NullPointerException");
+        final PegNode path = graph.path(scope.peg.id, n.getNameAsString());
+        final PegNode isnull = graph.isnull(scope.peg.id);
+        final PegNode npe = graph.exception("java.lang.NullPointerException");
         final PegContext nullCheck = scope.context.withExceptionCondition(isnull, npe);
-        return PegNode.rd(path.id, scope.context.heap.id).exprResult(nullCheck);
+        return graph.rd(path.id, scope.context.heap.id).exprResult(nullCheck);
     }
 
     @Override
@@ -347,8 +280,8 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
 
         if (n.getScope().isPresent()) {
             scope = n.getScope().get().accept(this, context);
-            scope = scope.withExceptionCondition(PegNode.isnull(scope.peg.id),
-                    PegNode.exception("java.lang.NullPointerException"));
+            scope = scope.withExceptionCondition(graph.isnull(scope.peg.id),
+                    graph.exception("java.lang.NullPointerException"));
         } else {
             scope = context.exprResult(context.getLocalVar("this"));
         }
@@ -363,21 +296,21 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
             ctx = er.context;
             actualsPegs.add(er.peg.id);
         }
-        final PegNode actuals = PegNode.actuals(actualsPegs.toArray(new Integer[]{}));
+        final PegNode actuals = graph.actuals(Ints.toArray(actualsPegs));
 
-        final PegNode invocation = PegNode.invoke(
+        final PegNode invocation = graph.invoke(
                 ctx.heap.id,
                 scope.peg.id,
                 n.getNameAsString(),
                 actuals.id);
         // We also need to update the context's heap since we've called a method which may have changed heap state
-        ctx = context.withHeap(PegNode.projectHeap(invocation.id));
-        return PegNode.invokeToPeg(invocation.id).exprResult(ctx);
+        ctx = context.withHeap(graph.projectHeap(invocation.id));
+        return graph.invokeToPeg(invocation.id).exprResult(ctx);
     }
 
     @Override
     public ExpressionResult visit(NullLiteralExpr n, PegContext arg) {
-        return PegNode.nullLit().exprResult(arg);
+        return graph.nullLit().exprResult(arg);
     }
 
     @Override
@@ -392,22 +325,22 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
             actualsPegs.add(er.peg.id);
         }
 
-        final PegNode actuals = PegNode.actuals(actualsPegs.toArray(new Integer[]{}));
-        final PegNode allocation = PegNode.newObject(n.getType().asString(), actuals.id, ctx.heap.id);
+        final PegNode actuals = graph.actuals(Ints.toArray(actualsPegs));
+        final PegNode allocation = graph.newObject(n.getType().asString(), actuals.id, ctx.heap.id);
         // We also need to update the context's heap since we've called a method which may have changed heap state
-        ctx = ctx.withHeap(PegNode.projectHeap(allocation.id));
-        return PegNode.invokeToPeg(allocation.id).exprResult(ctx);
+        ctx = ctx.withHeap(graph.projectHeap(allocation.id));
+        return graph.invokeToPeg(allocation.id).exprResult(ctx);
     }
 
     @Override
     public ExpressionResult visit(CastExpr n, PegContext arg) {
-        final PegNode typeName = PegNode.typeName(n.getType().toString());
+        final PegNode typeName = graph.typeName(n.getType().toString());
         final ExpressionResult er = n.getExpression().accept(this, arg);
 
         // Create relevant PegNodes
-        final PegNode canCast = PegNode.canCast(er.peg.id, typeName.id);
-        final PegNode cast = PegNode.cast(er.peg.id, typeName.id);
-        final PegContext ctx = er.context.withExceptionCondition(canCast, PegNode.exception("java.lang.ClassCastException"));
+        final PegNode canCast = graph.canCast(er.peg.id, typeName.id);
+        final PegNode cast = graph.cast(er.peg.id, typeName.id);
+        final PegContext ctx = er.context.withExceptionCondition(canCast, graph.exception("java.lang.ClassCastException"));
         return ctx.exprResult(cast);
     }
 
@@ -431,9 +364,9 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
         // our array values into a nested PegNode representing the array. We'll combine this value
         // the the context from `er`
 
-        PegNode arr = PegNode.nilArray();
+        PegNode arr = graph.nilArray();
         while (!pegStack.isEmpty()) {
-          arr = PegNode.consArray(pegStack.pop().id, arr.id);
+          arr = graph.consArray(pegStack.pop().id, arr.id);
         }
         return er.withPeg(arr);
     }
@@ -442,7 +375,7 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
     public ExpressionResult visit(InstanceOfExpr n, PegContext arg) {
         ExpressionResult exprResult = n.getExpression().accept(this, arg);
         ReferenceType type = n.getType();
-        return exprResult.withPeg(PegNode.instanceOf(exprResult.peg.id, type.toString()));
+        return exprResult.withPeg(graph.instanceOf(exprResult.peg.id, type.toString()));
     }
 
     @Override
@@ -504,7 +437,7 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
     public ExpressionResult visit(ArrayAccessExpr n, PegContext arg) {
         ExpressionResult nameRes = n.getName().accept(this, arg);
         ExpressionResult indexRes = n.getIndex().accept(this, nameRes.context);
-        return PegNode.arrayAccess(nameRes.peg.id, indexRes.peg.id).exprResult(indexRes.context);
+        return graph.arrayAccess(nameRes.peg.id, indexRes.peg.id).exprResult(indexRes.context);
     }
 
     @Override
@@ -625,18 +558,24 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
      * @return the {@code ExpressionResult} resulting from the assignment, including {@code value} as the
      *         {@code peg} field.
      */
-    private ExpressionResult performAssign(final Expression target, final PegNode value, final PegContext ctx) {
+    private ExpressionResult performAssign(final Expression target, PegNode value, final PegContext ctx) {
         if (target.isNameExpr()) {
             final String nameString = target.asNameExpr().getNameAsString();
             // Check if this is an implicit dereference (e.g., `x` instead of `this.x`)
             if (ctx.isUnshadowedField(nameString)) {
+                value = widen(value, fieldType(target, nameString));
                 // NOTE: We do not need to explicitly use exit conditions: these are already tracked in the heap
                 return ctx.performWrite(new FieldAccessExpr(new ThisExpr(), nameString), value, this);
             }
+            value = widen(value, localType(target, nameString));
             return value.exprResult(ctx.performAssignLocalVar(nameString, value));
         }
         else if (target.isFieldAccessExpr()) {
-            return ctx.performWrite(target.asFieldAccessExpr(), value, this).withPeg(value);
+            final FieldAccessExpr fieldAccess = target.asFieldAccessExpr();
+            if (fieldAccess.getScope().isThisExpr()) {
+                value = widen(value, fieldType(target, fieldAccess.getNameAsString()));
+            }
+            return ctx.performWrite(fieldAccess, value, this).withPeg(value);
         }
         else if (target.isArrayAccessExpr()) {
             throw new RuntimeException("ArrayAccessAssignExpr");
@@ -645,4 +584,74 @@ public class PegExprVisitor extends com.github.javaparser.ast.visitor.GenericVis
             throw new RuntimeException("UnrecognizedAssignmentTarget");
         }
     }
+
+    /**
+     * An {@code int} literal stored in a {@code long} variable or field is a {@code long}, and is widened so that the
+     * {@link ConstantFolder} computes with it as Java would: for instance, {@code x << 40} for {@code long x = 1} is
+     * 2^40, while {@code 1 << 40} is 256.
+     * @param type the declared type of what {@code value} is stored in, if it is known
+     * @return {@code value} converted to {@code type}
+     */
+    private PegNode widen(final PegNode value, final Optional<Type> type) {
+        if (value instanceof PegNode.IntLit && type.isPresent()
+                && type.get().equals(PrimitiveType.longType())) {
+            return graph.longLit(((PegNode.IntLit) value).value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the declared type of the local variable or parameter {@code name} that is in scope at {@code use}, if
+     *         it can be found. Java doesn't let a local shadow another local, so the first declaration found while
+     *         walking out from {@code use} is the one in scope.
+     */
+    private static Optional<Type> localType(final Node use, final String name) {
+        Node child = use;
+        for (Node parent = use.getParentNode().orElse(null); parent != null;
+             child = parent, parent = parent.getParentNode().orElse(null)) {
+            if (parent instanceof BlockStmt) {
+                for (Statement statement : ((BlockStmt) parent).getStatements()) {
+                    if (statement == child) break;
+                    if (statement.isExpressionStmt()) {
+                        final Optional<Type> type = declaredType(statement.asExpressionStmt().getExpression(), name);
+                        if (type.isPresent()) return type;
+                    }
+                }
+            } else if (parent instanceof ForStmt) {
+                for (Expression init : ((ForStmt) parent).getInitialization()) {
+                    final Optional<Type> type = declaredType(init, name);
+                    if (type.isPresent()) return type;
+                }
+            } else if (parent instanceof CallableDeclaration) {
+                for (Parameter parameter : ((CallableDeclaration<?>) parent).getParameters()) {
+                    if (parameter.getNameAsString().equals(name)) return Optional.of(parameter.getType());
+                }
+                return Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Type> declaredType(final Expression expr, final String name) {
+        if (expr.isVariableDeclarationExpr()) {
+            for (VariableDeclarator declarator : expr.asVariableDeclarationExpr().getVariables()) {
+                if (declarator.getNameAsString().equals(name)) return Optional.of(declarator.getType());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the declared type of the field {@code name} of the class enclosing {@code use}, if it has one
+     */
+    private static Optional<Type> fieldType(final Node use, final String name) {
+        final Optional<FieldDeclaration> field = use.findAncestor(TypeDeclaration.class)
+                .flatMap(type -> ((TypeDeclaration<?>) type).getFieldByName(name));
+        if (field.isPresent()) {
+            for (VariableDeclarator declarator : field.get().getVariables()) {
+                if (declarator.getNameAsString().equals(name)) return Optional.of(declarator.getType());
+            }
+        }
+        return Optional.empty();
+    }
 }
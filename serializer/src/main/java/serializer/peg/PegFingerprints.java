@@ -0,0 +1,308 @@
+package serializer.peg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Structural fingerprints of the nodes of a {@code PegGraph}, including nodes on theta cycles. A node's fingerprint
+ * is a 64-bit hash of the PEG rooted at it that doesn't depend on node ids, so it is invariant under renaming thetas
+ * and blanks: two PEGs related by {@link PegGraph#isStructuralBijection} have the same fingerprint. The converse
+ * holds up to hash collisions, so PEGs can be bucketed by fingerprint, calling {@code isStructuralBijection} only to
+ * confirm a match.</p>
+ *
+ * <p>A theta's edges are its initializer and its continuation; its blank (whose child is the blank's id) is skipped.
+ * Nodes that are not on a cycle get a Merkle hash of their operator and their children's fingerprints. The nodes of a
+ * cycle (a strongly connected component) can't be hashed bottom-up. Instead, the component is hashed as a pre-order
+ * walk from a canonical start, in which a node of the component that was already walked is written as a
+ * back-reference to its position in the walk, and a node outside of the component is written as its fingerprint. Each
+ * member's fingerprint is the walk's hash mixed with the member's position in it.</p>
+ *
+ * <p>The start is the member with the smallest key, which hashes its operator and, for a few rounds, its successors'
+ * keys. The keys don't depend on ids, and so neither does the start, except among members with the same key, which
+ * are walked from in turn to find the smallest walk. Members of a loop nearly always have different keys, so a
+ * component usually takes a single walk, and only one with many indistinguishable members takes a walk for each.</p>
+ *
+ * <p>A node that reaches no theta is fingerprinted when it is created (see {@link PegNode#fingerprint()}), and its
+ * fingerprint here is the same. Other fingerprints are computed once, the first time they are asked for, and cached.
+ * Since a theta's continuation is set after the theta is created, fingerprints should only be asked for once the PEGs
+ * involved are finished.</p>
+ */
+public final class PegFingerprints {
+    static final long INT_LIT = 0x1L, LONG_LIT = 0x2L, BOOL_LIT = 0x3L, STRING_LIT = 0x4L;
+    private static final long OP = 0x5L, BACK_REFERENCE = 0x6L, NO_CONTINUATION = 0x7L, NAME = 0x8L;
+    private static final int[] NO_SUCCESSORS = new int[0];
+    /**
+     * How many times a cycle member's key is refined with its successors' keys
+     */
+    private static final int KEY_ROUNDS = 2;
+
+    private final PegGraph graph;
+    private long[] fingerprints = new long[0];
+    private boolean[] known = new boolean[0];
+
+    // Tarjan's algorithm state, indexed by id. index[id] == 0 means unvisited; indices start at 1.
+    private int[] index = new int[0];
+    private int[] lowlink = new int[0];
+    private boolean[] onStack = new boolean[0];
+
+    public PegFingerprints(final PegGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @return the fingerprint of the PEG rooted at node {@code id}
+     * @throws IllegalArgumentException if there is no node {@code id}
+     */
+    public long fingerprint(final int id) {
+        final PegNode node = graph.get(id);
+        if (node.thetaCount() == 0) {
+            return node.fingerprint();
+        }
+        ensureCapacity();
+        if (!known[id]) {
+            computeFrom(id);
+        }
+        return fingerprints[id];
+    }
+
+    /**
+     * Fingerprint every node reachable from {@code root} that doesn't have a fingerprint yet. This is an iterative
+     * Tarjan's algorithm; components are completed children-first, so a component's successors outside of it are
+     * always fingerprinted before it is.
+     */
+    private void computeFrom(final int root) {
+        final List<Integer> componentStack = new ArrayList<>();
+        // DFS frames: a node and the position of the next successor to visit
+        final List<int[]> frames = new ArrayList<>();
+        final List<int[]> successors = new ArrayList<>();
+        int counter = 0;
+
+        index[root] = lowlink[root] = ++counter;
+        componentStack.add(root);
+        onStack[root] = true;
+        frames.add(new int[]{root, 0});
+        successors.add(successors(root));
+
+        while (!frames.isEmpty()) {
+            final int[] frame = frames.get(frames.size() - 1);
+            final int id = frame[0];
+            final int[] succs = successors.get(successors.size() - 1);
+            if (frame[1] < succs.length) {
+                final int next = succs[frame[1]++];
+                if (known[next]) continue;
+                final PegNode node = graph.lookup(next);
+                if (node.thetaCount() == 0) {
+                    fingerprints[next] = node.fingerprint();
+                    known[next] = true;
+                    continue;
+                }
+                if (index[next] == 0) {
+                    index[next] = lowlink[next] = ++counter;
+                    componentStack.add(next);
+                    onStack[next] = true;
+                    frames.add(new int[]{next, 0});
+                    successors.add(successors(next));
+                } else if (onStack[next]) {
+                    lowlink[id] = Math.min(lowlink[id], index[next]);
+                }
+                continue;
+            }
+            frames.remove(frames.size() - 1);
+            successors.remove(successors.size() - 1);
+            if (!frames.isEmpty()) {
+                final int parent = frames.get(frames.size() - 1)[0];
+                lowlink[parent] = Math.min(lowlink[parent], lowlink[id]);
+            }
+            if (lowlink[id] == index[id]) {
+                final List<Integer> component = componentStack.subList(componentStack.lastIndexOf(id), componentStack.size());
+                final int[] members = component.stream().mapToInt(Integer::intValue).toArray();
+                component.clear();
+                for (int member : members) onStack[member] = false;
+                fingerprintComponent(members);
+                for (int member : members) index[member] = 0;
+            }
+        }
+    }
+
+    private void fingerprintComponent(final int[] members) {
+        if (members.length == 1 && !hasSuccessor(members[0], members[0])) {
+            final int id = members[0];
+            long h = tag(id);
+            for (int succ : successors(id)) {
+                h = mix(h, fingerprints[succ]);
+            }
+            fingerprints[id] = h;
+            known[id] = true;
+            return;
+        }
+        // Members stay unknown until the component is done, so that a walk can tell members (!known) from the
+        // component's successors (known)
+        final Map<Integer, Integer> slots = new HashMap<>();
+        for (int m = 0; m < members.length; ++m) {
+            slots.put(members[m], m);
+        }
+        long[] keys = new long[members.length];
+        for (int m = 0; m < members.length; ++m) {
+            keys[m] = tag(members[m]);
+        }
+        for (int round = 0; round < KEY_ROUNDS; ++round) {
+            final long[] refined = new long[members.length];
+            for (int m = 0; m < members.length; ++m) {
+                long h = keys[m];
+                for (int succ : successors(members[m])) {
+                    h = mix(h, known[succ] ? fingerprints[succ] : mix(BACK_REFERENCE, keys[slots.get(succ)]));
+                }
+                refined[m] = h;
+            }
+            keys = refined;
+        }
+        long smallest = Long.MAX_VALUE;
+        for (long key : keys) {
+            smallest = Math.min(smallest, key);
+        }
+
+        // Walk from each member with the smallest key, and keep the smallest walk. Members with the same key that
+        // start the same walk are interchangeable, so each member takes its smallest position in those walks.
+        final int[] walked = new int[members.length];
+        int[] positions = null;
+        long best = 0;
+        for (int m = 0; m < members.length; ++m) {
+            if (keys[m] != smallest) continue;
+            final long h = walk(members[m], slots, walked);
+            if (positions == null || h < best) {
+                best = h;
+                positions = walked.clone();
+            } else if (h == best) {
+                for (int i = 0; i < members.length; ++i) {
+                    positions[i] = Math.min(positions[i], walked[i]);
+                }
+            }
+        }
+        for (int m = 0; m < members.length; ++m) {
+            fingerprints[members[m]] = mix(best, positions[m]);
+            known[members[m]] = true;
+        }
+    }
+
+    /**
+     * Walk the component that {@code start} belongs to in pre-order
+     * @param slots the members of the component, each mapped to its index in {@code positions}
+     * @param positions set to each member's position in the walk
+     * @return the walk's hash
+     */
+    private long walk(final int start, final Map<Integer, Integer> slots, final int[] positions) {
+        Arrays.fill(positions, -1);
+        final List<Integer> stack = new ArrayList<>();
+        stack.add(start);
+        int walked = 0;
+        long h = 0;
+        while (!stack.isEmpty()) {
+            final int id = stack.remove(stack.size() - 1);
+            if (known[id]) {
+                h = mix(h, fingerprints[id]);
+                continue;
+            }
+            final int slot = slots.get(id);
+            if (positions[slot] >= 0) {
+                h = mix(mix(h, BACK_REFERENCE), positions[slot]);
+                continue;
+            }
+            positions[slot] = walked++;
+            h = mix(h, tag(id));
+            final int[] succs = successors(id);
+            for (int i = succs.length - 1; i >= 0; --i) {
+                stack.add(succs[i]);
+            }
+        }
+        return h;
+    }
+
+    private boolean hasSuccessor(final int id, final int succ) {
+        for (int s : successors(id)) {
+            if (s == succ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids that the fingerprint of node {@code id} depends on, in order
+     */
+    private int[] successors(final int id) {
+        final PegNode node = graph.lookup(id);
+        if (node instanceof PegNode.ThetaNode) {
+            final PegNode.ThetaNode theta = (PegNode.ThetaNode) node;
+            return theta.getContinuation().map(c -> new int[]{theta.init, c.id}).orElseGet(() -> new int[]{theta.init});
+        }
+        if (node instanceof PegNode.OpNode) {
+            return ((PegNode.OpNode) node).children;
+        }
+        return NO_SUCCESSORS;
+    }
+
+    /**
+     * @return a hash of node {@code id} itself, ignoring its children's ids
+     */
+    private long tag(final int id) {
+        final PegNode node = graph.lookup(id);
+        if (!(node instanceof PegNode.OpNode)) {
+            // A literal's fingerprint is its tag
+            return node.fingerprint();
+        }
+        final PegNode.OpNode op = (PegNode.OpNode) node;
+        final long h = opTag(graph, op.opcode, successors(id).length);
+        return op.isThetaNode() && !((PegNode.ThetaNode) op).getContinuation().isPresent() ? mix(h, NO_CONTINUATION) : h;
+    }
+
+    /**
+     * @return the tag of an operator node in {@code graph}, given its operator and its number of children
+     */
+    static long opTag(final PegGraph graph, final int opcode, final int arity) {
+        // A graph's own opcodes depend on the order it saw their symbols in, so they are hashed by symbol instead
+        return mix(mix(OP, opcode < Opcodes.size() ? opcode : nameTag(graph.symbol(opcode))), arity);
+    }
+
+    /**
+     * @return the tag of a string literal
+     */
+    static long stringTag(final String value) {
+        long h = STRING_LIT;
+        for (int i = 0; i < value.length(); ++i) {
+            h = mix(h, value.charAt(i));
+        }
+        return h;
+    }
+
+    /**
+     * @return the tag of an operator symbol that isn't fixed in {@link Opcodes}
+     */
+    private static long nameTag(final String symbol) {
+        long h = NAME;
+        for (int i = 0; i < symbol.length(); ++i) {
+            h = mix(h, symbol.charAt(i));
+        }
+        return h;
+    }
+
+    /**
+     * Combine a hash with a value. This is the splitmix64 finalizer applied to {@code h * 31 + x}.
+     */
+    static long mix(final long h, final long x) {
+        long z = h * 31 + x + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private void ensureCapacity() {
+        final int size = graph.size();
+        if (size <= known.length) return;
+        fingerprints = Arrays.copyOf(fingerprints, size);
+        known = Arrays.copyOf(known, size);
+        index = Arrays.copyOf(index, size);
+        lowlink = Arrays.copyOf(lowlink, size);
+        onStack = Arrays.copyOf(onStack, size);
+    }
+}
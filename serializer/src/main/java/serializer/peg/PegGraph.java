@@ -0,0 +1,1171 @@
+package serializer.peg;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * <p>A {@code PegGraph} is an arena that owns a deduplicated (hash-consed) collection of {@code PegNode}s. It
+ * allocates node ids, maintains the lookup tables used for deduplication, and tracks node equivalences produced by
+ * {@code ThetaNode}s.</p>
+ *
+ * <p>All {@code PegNode}s are created through a {@code PegGraph}, and a node's children always live in the same
+ * graph as the node itself. Translations that need to share nodes (e.g., an original method and its mutants) should
+ * use the same graph; unrelated translations should each use their own graph.</p>
+ *
+ * <p>A graph created with {@code new PegGraph()} is not synchronized and must be confined to a single thread, but
+ * distinct graphs may be used concurrently. A graph created with {@link #concurrent()} may be shared by many
+ * translating threads: its lookup tables are concurrent maps, node interning is atomic (two threads asking for the
+ * same node always receive the same node), and ids are allocated atomically. Since a node's id is only allocated
+ * once its children have been obtained, every child still has a strictly smaller id than its parent.</p>
+ */
+public class PegGraph {
+
+    /**
+     * Is this graph safe to share between threads?
+     */
+    private final boolean concurrent;
+
+    /**
+     * The next id to be allocated
+     */
+    private final AtomicInteger _id = new AtomicInteger();
+
+    /**
+     * The next blank id to be allocated to a {@code ThetaNode}'s blank node
+     */
+    private final AtomicInteger _blankId = new AtomicInteger();
+
+    /**
+     * lookup the PEG node from an id
+     */
+    private final NodeTable idLookup = new NodeTable();
+
+    /**
+     * A read-only view of {@code idLookup}
+     */
+    private final Map<Integer, PegNode> idLookupView = new IdLookupView();
+
+    /**
+     * Keep track of node equivalences
+     */
+    private final Equivalences equivalences = new Equivalences();
+
+    /**
+     * lookup the PEG node from a symbol and its children ids
+     */
+    private final InternTable symbolLookup;
+
+    /**
+     * Opcodes for the operator symbols that aren't fixed in {@link Opcodes}, such as method, field and variable names.
+     * They belong to this graph, so they are collected with it and rolled back with its nodes.
+     */
+    private final SymbolTable names = new SymbolTable(Opcodes.size());
+
+    /**
+     * Literal lookup tables, one per literal type
+     */
+    private final LiteralTable intLitLookup;
+    private final LiteralTable longLitLookup;
+    private volatile PegNode trueLit;
+    private volatile PegNode falseLit;
+    private final Map<String, PegNode> stringLitLookup;
+
+    /**
+     * The exception statuses built by {@link #guardedException}, by id
+     */
+    private final Map<Integer, ExceptionChain> exceptionChains;
+
+    /**
+     * The budget meter of the translation running on this graph, if it has a budget. A concurrent graph keeps one
+     * meter per thread in {@code meters} instead, since each thread runs its own translation.
+     */
+    private TranslationBudget.Meter meter;
+    private final ThreadLocal<TranslationBudget.Meter> meters;
+
+    /**
+     * Literal factories, allocated once so that literal lookups allocate nothing
+     */
+    private final LongFunction<PegNode> newIntLit = n -> register(new PegNode.IntLit(this, (int) n));
+    private final LongFunction<PegNode> newLongLit = n -> register(new PegNode.LongLit(this, n));
+
+    /**
+     * Create a new, empty graph that must be confined to a single thread
+     */
+    public PegGraph() {
+        this(false);
+    }
+
+    private PegGraph(final boolean concurrent) {
+        this.concurrent = concurrent;
+        symbolLookup = new InternTable(concurrent);
+        intLitLookup = new LiteralTable(concurrent);
+        longLitLookup = new LiteralTable(concurrent);
+        stringLitLookup = newMap();
+        exceptionChains = newMap();
+        meters = concurrent ? new ThreadLocal<>() : null;
+    }
+
+    /**
+     * @return a new, empty graph that may be shared between threads
+     */
+    public static PegGraph concurrent() {
+        return new PegGraph(true);
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    private <K, V> Map<K, V> newMap() {
+        return concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+    }
+
+    /**
+     * @return a read-only view of the map mapping peg ids to their corresponding {@code PegNode}s. The view is backed
+     * by this graph, so it reflects nodes created after this call, and it iterates in increasing id order.
+     */
+    public Map<Integer, PegNode> getIdLookup() {
+        return idLookupView;
+    }
+
+    /**
+     * Get a list of all node equivalences
+     * @return list of node equivalences
+     */
+    public List<Pair<Integer, Integer>> getNodeEquivalences() {
+        synchronized (equivalences) {
+            return equivalences.getEquivalences();
+        }
+    }
+
+    /**
+     * @return {@code true} if ids {@code id1} and {@code id2} are the same, or are related by a chain of node
+     *         equivalences
+     */
+    public boolean areEquivalent(final int id1, final int id2) {
+        synchronized (equivalences) {
+            return equivalences.areEquivalent(id1, id2);
+        }
+    }
+
+    /**
+     * @return the classes of ids related by node equivalences, as described by {@link Equivalences#getClasses()}
+     */
+    public List<int[]> getEquivalenceClasses() {
+        synchronized (equivalences) {
+            return equivalences.getClasses();
+        }
+    }
+
+    public Optional<PegNode> idLookup(final Integer id) {
+        return Optional.ofNullable(idLookup.get(id));
+    }
+
+    /**
+     * @param id a node id
+     * @return the node with id {@code id}
+     * @throws IllegalArgumentException if there is no node with id {@code id}
+     */
+    public PegNode get(final int id) {
+        final PegNode node = idLookup.get(id);
+        if (node == null) {
+            throw new IllegalArgumentException("No PegNode with id " + id);
+        }
+        return node;
+    }
+
+    /**
+     * @return the number of nodes allocated by this graph
+     */
+    public int size() {
+        return _id.get();
+    }
+
+    /**
+     * @param id a node id
+     * @return the node with id {@code id}, or {@code null} if no such node exists
+     */
+    PegNode lookup(final int id) {
+        return idLookup.get(id);
+    }
+
+    /**
+     * A watermark on a graph's node store, taken by {@link #checkpoint()}
+     */
+    public static final class Checkpoint {
+        private final PegGraph graph;
+        private final int id;
+        private final int blankId;
+        private final int equivalences;
+        private final int names;
+
+        private Checkpoint(final PegGraph graph, final int id, final int blankId, final int equivalences,
+                           final int names) {
+            this.graph = graph;
+            this.id = id;
+            this.blankId = blankId;
+            this.equivalences = equivalences;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Mark the current state of the node store so that nodes created after this call can later be discarded with
+     * {@link #rollback(Checkpoint)}.
+     * @throws IllegalStateException if this graph is concurrent: other threads' nodes would be interleaved with
+     * ours, so there is no single watermark to roll back to
+     */
+    public Checkpoint checkpoint() {
+        if (concurrent) {
+            throw new IllegalStateException("Cannot checkpoint a concurrent PegGraph");
+        }
+        synchronized (equivalences) {
+            return new Checkpoint(this, _id.get(), _blankId.get(), equivalences.size(), names.size());
+        }
+    }
+
+    /**
+     * Discard every node, blank id, equivalence and name created since {@code checkpoint} was taken, and reset id
+     * allocation to the checkpoint's watermark. Nodes created since the checkpoint must no longer be used.
+     * @param checkpoint a checkpoint taken from this graph
+     * @throws IllegalArgumentException if {@code checkpoint} was taken from a different graph, or the graph has
+     * already been rolled back past it
+     */
+    public void rollback(final Checkpoint checkpoint) {
+        if (checkpoint.graph != this || checkpoint.id > _id.get()) {
+            throw new IllegalArgumentException("Invalid checkpoint");
+        }
+        for (int id = _id.get() - 1; id >= checkpoint.id; --id) {
+            final PegNode node = idLookup.get(id);
+            if (node == null) continue;
+            idLookup.remove(id);
+            exceptionChains.remove(id);
+            if (node instanceof PegNode.OpNode) {
+                symbolLookup.remove((PegNode.OpNode) node);
+            } else if (node instanceof PegNode.IntLit) {
+                intLitLookup.remove(node);
+            } else if (node instanceof PegNode.LongLit) {
+                longLitLookup.remove(node);
+            } else if (node instanceof PegNode.StringLit) {
+                stringLitLookup.remove(((PegNode.StringLit) node).value, node);
+            } else if (node == trueLit) {
+                trueLit = null;
+            } else if (node == falseLit) {
+                falseLit = null;
+            }
+        }
+        synchronized (equivalences) {
+            for (Pair<Integer, Integer> equiv : equivalences.truncate(checkpoint.equivalences)) {
+                // An older theta's continuation may have been set after the checkpoint
+                final PegNode blank = idLookup.get(equiv.fst);
+                if (blank instanceof PegNode.ThetaNode.BlankNode) {
+                    ((PegNode.ThetaNode.BlankNode) blank).identifiedNode = null;
+                }
+            }
+        }
+        names.truncate(checkpoint.names);
+        _id.set(checkpoint.id);
+        _blankId.set(checkpoint.blankId);
+    }
+
+    /**
+     * Run {@code translation}, counting the nodes it allocates and the time it takes against {@code budget}. Only
+     * allocations made by the current thread are counted, so in a concurrent graph each thread's translation has a
+     * budget of its own.
+     * @return the result of {@code translation}
+     * @throws TranslationBudget.Exceeded if {@code translation} exceeds {@code budget}. The nodes it allocated are
+     * not rolled back.
+     */
+    public <T> T underBudget(final TranslationBudget budget, final Supplier<T> translation) {
+        if (budget.isUnlimited()) {
+            return translation.get();
+        }
+        final TranslationBudget.Meter outer = currentMeter();
+        setCurrentMeter(new TranslationBudget.Meter(budget));
+        try {
+            return translation.get();
+        } finally {
+            setCurrentMeter(outer);
+        }
+    }
+
+    /**
+     * Check the clock of the current thread's translation budget, if it has one. Allocations check the clock
+     * periodically, but a translation can also spend time without allocating, so translators should call this at
+     * each statement.
+     * @throws TranslationBudget.Exceeded if the translation has run out of time
+     */
+    public void checkBudget() {
+        final TranslationBudget.Meter meter = currentMeter();
+        if (meter != null) {
+            meter.checkClock();
+        }
+    }
+
+    private TranslationBudget.Meter currentMeter() {
+        return meters == null ? meter : meters.get();
+    }
+
+    private void setCurrentMeter(final TranslationBudget.Meter meter) {
+        if (meters == null) {
+            this.meter = meter;
+        } else if (meter == null) {
+            meters.remove();
+        } else {
+            meters.set(meter);
+        }
+    }
+
+    /**
+     * Allocate a fresh node id. This is called by the {@code PegNode} constructor.
+     * @throws TranslationBudget.Exceeded if the allocation exceeds the current translation's budget
+     */
+    int nextId() {
+        final TranslationBudget.Meter meter = currentMeter();
+        if (meter != null) {
+            meter.allocated();
+        }
+        return _id.getAndIncrement();
+    }
+
+    void addEquivalence(final Integer id1, final Integer id2) {
+        synchronized (equivalences) {
+            equivalences.addEquivalence(id1, id2);
+        }
+    }
+
+    /**
+     * Register a newly constructed node in the id table
+     */
+    private <N extends PegNode> N register(final N node) {
+        idLookup.put(node);
+        return node;
+    }
+
+    /**
+     * Look up the {@code OpNode} for {@code opcode} applied to children, creating it with {@code factory} and
+     * registering it if it doesn't already exist. Children are passed as described in {@link InternTable#find}. A
+     * lookup that finds an existing node allocates nothing, so callers should only allocate {@code factory} after
+     * {@code symbolLookup.find} has missed. In a concurrent graph the lookup and the creation happen atomically, so
+     * {@code factory} is called at most once per key.
+     */
+    private PegNode.OpNode intern(final int opcode, final int hash, final int arity,
+                                  final int c0, final int c1, final int c2, final int[] rest,
+                                  final Supplier<PegNode.OpNode> factory) {
+        if (!concurrent) {
+            return addOpNode(factory.get());
+        }
+        synchronized (symbolLookup.lock(hash)) {
+            final PegNode.OpNode node = symbolLookup.find(opcode, hash, arity, c0, c1, c2, rest);
+            if (node != null) {
+                return node;
+            }
+            return addOpNode(factory.get());
+        }
+    }
+
+    private PegNode.OpNode addOpNode(final PegNode.OpNode node) {
+        register(node);
+        symbolLookup.add(node);
+        return node;
+    }
+
+    private PegNode opNode(final int opcode, final int hash, final int arity,
+                           final int c0, final int c1, final int c2, final int[] rest) {
+        final PegNode node = symbolLookup.find(opcode, hash, arity, c0, c1, c2, rest);
+        if (node != null) {
+            return node;
+        }
+        return intern(opcode, hash, arity, c0, c1, c2, rest,
+                () -> new PegNode.OpNode(this, opcode, InternTable.children(arity, c0, c1, c2, rest)));
+    }
+
+    /**
+     * @param symbol an operator symbol
+     * @return the opcode for {@code symbol}: its fixed opcode in {@link Opcodes}, or otherwise this graph's opcode
+     *         for it, registering it if it hasn't been seen before
+     */
+    public int intern(final String symbol) {
+        final int opcode = Opcodes.find(symbol);
+        return opcode >= 0 ? opcode : names.intern(symbol);
+    }
+
+    /**
+     * @param opcode an opcode returned by {@link #intern(String)}
+     * @return the symbol that {@code opcode} was interned from
+     */
+    public String symbol(final int opcode) {
+        return opcode < Opcodes.size() ? Opcodes.symbol(opcode) : names.symbol(opcode);
+    }
+
+    /**
+     * Get an OpNode for sym being applied to children. This creates a new
+     * OpNode if needed (i.e., if one with the same sym and children doesn't
+     * already exist) and adds it's id to the idLookup table and adds its
+     * symbol to the symbolLookup table.
+     * @param sym operator symbol
+     * @param children child PEG ids
+     * @return a peg node representing (sym *children)
+     */
+    public PegNode opNode(String sym, int...children) {
+        return opNode(intern(sym), children);
+    }
+
+    public PegNode opNode(String sym) {
+        return opNode(intern(sym));
+    }
+
+    public PegNode opNode(String sym, int c0) {
+        return opNode(intern(sym), c0);
+    }
+
+    public PegNode opNode(String sym, int c0, int c1) {
+        return opNode(intern(sym), c0, c1);
+    }
+
+    public PegNode opNode(String sym, int c0, int c1, int c2) {
+        return opNode(intern(sym), c0, c1, c2);
+    }
+
+    /**
+     * Get an OpNode for the operator with opcode {@code opcode} being applied to children. See
+     * {@link #opNode(String, int...)}.
+     * @param opcode an opcode from {@link Opcodes}
+     * @param children child PEG ids
+     * @return a peg node representing (opcode *children)
+     */
+    public PegNode opNode(int opcode, int...children) {
+        switch (children.length) {
+            case 0: return opNode(opcode);
+            case 1: return opNode(opcode, children[0]);
+            case 2: return opNode(opcode, children[0], children[1]);
+            case 3: return opNode(opcode, children[0], children[1], children[2]);
+            default: return opNode(opcode, InternTable.hash(opcode, children), children.length, 0, 0, 0, children);
+        }
+    }
+
+    public PegNode opNode(int opcode) {
+        return opNode(opcode, InternTable.hash(opcode), 0, 0, 0, 0, null);
+    }
+
+    /**
+     * Get an OpNode for a unary operator. An operator applied to a literal is folded to a literal by
+     * {@link ConstantFolder}.
+     */
+    public PegNode opNode(int opcode, int c0) {
+        if (ConstantFolder.folds(opcode)) {
+            final PegNode folded = ConstantFolder.fold(this, opcode, lookup(c0));
+            if (folded != null) return folded;
+        }
+        return opNode(opcode, InternTable.hash(opcode, c0), 1, c0, 0, 0, null);
+    }
+
+    /**
+     * Get an OpNode for a binary operator. Operands of a commutative operator are put in increasing id order, and
+     * {@code >} and {@code >=} are rewritten to {@code <} and {@code <=} with their operands swapped, so that
+     * {@code (* a b)} and {@code (* b a)}, or {@code (> a b)} and {@code (< b a)}, are the same node. Operands of
+     * {@code +} are only reordered when both are known to be numbers, since {@code +} is also string concatenation,
+     * which doesn't commute, and the operands' types aren't known here. An operator applied to literals is folded to
+     * a literal by {@link ConstantFolder}.
+     */
+    public PegNode opNode(int opcode, int c0, int c1) {
+        if (ConstantFolder.folds(opcode)) {
+            final PegNode folded = ConstantFolder.fold(this, opcode, lookup(c0), lookup(c1));
+            if (folded != null) return folded;
+        }
+        final int mirror = Opcodes.mirrored(opcode);
+        if (mirror >= 0 || (c0 > c1 && (Opcodes.isCommutative(opcode) || isNumericPlus(opcode, c0, c1)))) {
+            final int tmp = c0;
+            c0 = c1;
+            c1 = tmp;
+            if (mirror >= 0) opcode = mirror;
+        }
+        return opNode(opcode, InternTable.hash(opcode, c0, c1), 2, c0, c1, 0, null);
+    }
+
+    private boolean isNumericPlus(final int opcode, final int c0, final int c1) {
+        return opcode == Opcodes.PLUS && isNumeric(lookup(c0)) && isNumeric(lookup(c1));
+    }
+
+    /**
+     * @return {@code true} if {@code node} is known to be a number: a numeric literal, or the result of an operator
+     *         that only applies to numbers
+     */
+    private static boolean isNumeric(final PegNode node) {
+        if (node instanceof PegNode.IntLit || node instanceof PegNode.LongLit) return true;
+        if (!(node instanceof PegNode.OpNode)) return false;
+        final int opcode = ((PegNode.OpNode) node).opcode;
+        return opcode == Opcodes.MINUS || opcode == Opcodes.TIMES || opcode == Opcodes.DIVIDE
+                || opcode == Opcodes.REMAINDER || opcode == Opcodes.UMINUS;
+    }
+
+    public PegNode opNode(int opcode, int c0, int c1, int c2) {
+        return opNode(opcode, InternTable.hash(opcode, c0, c1, c2), 3, c0, c1, c2, null);
+    }
+
+    public PegNode opNodeFromPegs(String sym, PegNode...children) {
+        return opNodeFromPegs(intern(sym), children);
+    }
+
+    public PegNode opNodeFromPegs(int opcode, PegNode...children) {
+        switch (children.length) {
+            case 1: return opNode(opcode, children[0].id);
+            case 2: return opNode(opcode, children[0].id, children[1].id);
+            default: return opNode(opcode, Arrays.stream(children).mapToInt(x -> x.id).toArray());
+        }
+    }
+
+    public PegNode intLit(int n) {
+        return intLitLookup.get(n, newIntLit);
+    }
+
+    public PegNode longLit(long n) {
+        return longLitLookup.get(n, newLongLit);
+    }
+
+    public PegNode boolLit(boolean b) {
+        final PegNode node = b ? trueLit : falseLit;
+        return node != null ? node : newBoolLit(b);
+    }
+
+    private synchronized PegNode newBoolLit(boolean b) {
+        PegNode node = b ? trueLit : falseLit;
+        if (node == null) {
+            node = register(new PegNode.BoolLit(this, b));
+            if (b) trueLit = node; else falseLit = node;
+        }
+        return node;
+    }
+
+    public PegNode stringLit(String s) {
+        final PegNode node = stringLitLookup.get(s);
+        if (node != null) {
+            return node;
+        }
+        return stringLitLookup.computeIfAbsent(s, x -> register(new PegNode.StringLit(this, s)));
+    }
+
+    public PegNode unit() {
+        return opNode(Opcodes.UNIT);
+    }
+
+    /**
+     * @return whether node {@code id} is {@code unit}, without creating {@code unit} if the graph doesn't have it yet
+     */
+    private boolean isUnit(final int id) {
+        final PegNode unit = symbolLookup.find(Opcodes.UNIT, InternTable.hash(Opcodes.UNIT), 0, 0, 0, 0, null);
+        return unit != null && unit.id == id;
+    }
+
+    public PegNode.PhiNode phi(int guard, int then, int els) {
+        final int hash = InternTable.hash(Opcodes.PHI, guard, then, els);
+        PegNode node = symbolLookup.find(Opcodes.PHI, hash, 3, guard, then, els, null);
+        if (node == null) {
+            node = intern(Opcodes.PHI, hash, 3, guard, then, els, null, () -> new PegNode.PhiNode(this, guard, then, els));
+        }
+        if (node.isPhiNode()) {
+            return (PegNode.PhiNode) node;
+        }
+        final PegNode cached = node;
+        return cached.asPhiNode().orElseThrow(() -> new IllegalStateException(
+                String.format("Unexpected value cached for sym=\"phi\", children=[%d, %d, %d];" +
+                              " expected a PegNode.PhiNode but found %s",
+                        guard, then, els, cached.toDerefString())));
+    }
+
+    // Simplifying constructors. Each of these folds a node that is trivially equal to one of its arguments (or to a
+    // literal) at construction time, so the folded node never enters the graph. Unlike {@code phi}, they may return
+    // a node of any kind.
+
+    /**
+     * Get a node equal to {@code (phi guard then els)}, folding away the phi when its arms are the same node or its
+     * guard is a boolean literal.
+     * @return {@code then} if {@code then == els} or {@code guard} is {@code true}, {@code els} if {@code guard} is
+     *         {@code false}, and the phi node otherwise
+     */
+    public PegNode simplePhi(int guard, int then, int els) {
+        if (then == els || isTrue(guard)) return get(then);
+        if (isFalse(guard)) return get(els);
+        return phi(guard, then, els);
+    }
+
+    /**
+     * Get a heap equal to {@code (heap (phi guard then.state els.state) (phi guard then.status els.status))}. A
+     * component that is the same in both heaps is not wrapped in a phi, and if the heaps are the same then no node
+     * is created at all.
+     */
+    public PegNode.Heap simplePhi(int guard, PegNode.Heap then, PegNode.Heap els) {
+        if (then.id == els.id || isTrue(guard)) return then;
+        if (isFalse(guard)) return els;
+        return heap(simplePhi(guard, then.state, els.state).id, simplePhi(guard, then.status, els.status).id);
+    }
+
+    /**
+     * Get a node equal to {@code (! val)}, folding {@code (! true)}, {@code (! false)} and {@code (! (! x))}
+     */
+    public PegNode not(int val) {
+        if (isTrue(val)) return boolLit(false);
+        if (isFalse(val)) return boolLit(true);
+        final PegNode node = lookup(val);
+        if (node instanceof PegNode.OpNode && ((PegNode.OpNode) node).opcode == Opcodes.NOT) {
+            return get(node.child(0));
+        }
+        return opNode(Opcodes.NOT, val);
+    }
+
+    /**
+     * Get a node equal to {@code (|| lhs rhs)}, folding it when either side is a boolean literal or both sides are
+     * the same node. Both sides are pure PEG values, so {@code (|| x true)} is {@code true}.
+     */
+    public PegNode or(int lhs, int rhs) {
+        if (isFalse(lhs) || lhs == rhs) return get(rhs);
+        if (isFalse(rhs)) return get(lhs);
+        if (isTrue(lhs) || isTrue(rhs)) return boolLit(true);
+        return opNode(Opcodes.OR, lhs, rhs);
+    }
+
+    /**
+     * Get a node equal to {@code (&& lhs rhs)}, folding it when either side is a boolean literal or both sides are
+     * the same node
+     */
+    public PegNode and(int lhs, int rhs) {
+        if (isTrue(lhs) || lhs == rhs) return get(rhs);
+        if (isTrue(rhs)) return get(lhs);
+        if (isFalse(lhs) || isFalse(rhs)) return boolLit(false);
+        return opNode(Opcodes.AND, lhs, rhs);
+    }
+
+    private boolean isTrue(final int id) {
+        final PegNode node = trueLit;
+        return node != null && node.id == id;
+    }
+
+    private boolean isFalse(final int id) {
+        final PegNode node = falseLit;
+        return node != null && node.id == id;
+    }
+    
+    public PegNode.ThetaNode theta(int init) {
+        final int blankId = _blankId.getAndIncrement();
+        final PegNode.ThetaNode.BlankNode blank = register(new PegNode.ThetaNode.BlankNode(this, blankId, intLit(blankId).id));
+        return register(new PegNode.ThetaNode(this, init, blank));
+    }
+
+    public PegNode var(String name, int tpAnnot) {
+        return opNode(Opcodes.VAR, opNode(name).id, tpAnnot);
+    }
+
+    public PegNode derefs(String derefs) {
+        return opNode(Opcodes.DEREFS, opNode(derefs).id);
+    }
+
+    public PegNode path(int base, int derefs) {
+        return opNode(Opcodes.PATH, base, derefs);
+    }
+
+    public PegNode path(int base, String path) {
+        return path(base, derefs(path).id);
+    }
+
+    /**
+     * Get a node equal to {@code (rd path heap)}, forwarding the value of a write to the same path that {@code heap}'s
+     * state is the result of (see {@link #lastWrite})
+     */
+    public PegNode rd(int path, int heap) {
+        final PegNode write = lastWrite(path, heap);
+        if (write != null) return get(write.child(1));
+        return opNode(Opcodes.RD, path, heap);
+    }
+
+    /**
+     * Get a node equal to {@code (wr path val heap)}, dropping a write to the same path that {@code heap}'s state is
+     * the result of (see {@link #lastWrite}), since this write overwrites it
+     */
+    public PegNode wr(int path, int val, int heap) {
+        final PegNode write = lastWrite(path, heap);
+        if (write != null) return opNode(Opcodes.WR, path, val, write.child(2));
+        return opNode(Opcodes.WR, path, val, heap);
+    }
+
+    /**
+     * @return the {@code wr} node that is {@code heap}'s state, if it wrote through {@code path} and {@code path} is
+     *         a single field dereference, or {@code null}. A write through a longer path, such as {@code a.b.c}, may
+     *         change {@code a.b} (if {@code a.b.c} is {@code a.b}, say), after which the same path no longer names
+     *         the same field.
+     */
+    private PegNode lastWrite(final int path, final int heap) {
+        final PegNode heapNode = lookup(heap);
+        if (!(heapNode instanceof PegNode.Heap)) return null;
+        final PegNode state = lookup(((PegNode.Heap) heapNode).state);
+        if (!isOp(state, Opcodes.WR) || state.child(0) != path) return null;
+
+        final PegNode pathNode = lookup(path);
+        if (!isOp(pathNode, Opcodes.PATH)) return null;
+        final PegNode derefs = lookup(pathNode.child(1));
+        if (!isOp(derefs, Opcodes.DEREFS)) return null;
+        final PegNode field = lookup(derefs.child(0));
+        return field instanceof PegNode.OpNode && symbol(((PegNode.OpNode) field).opcode).indexOf('.') < 0
+                ? state : null;
+    }
+
+    private static boolean isOp(final PegNode node, final int opcode) {
+        return node instanceof PegNode.OpNode && ((PegNode.OpNode) node).opcode == opcode;
+    }
+
+    public PegNode invoke(int heap, int receiver, String method, int actuals) {
+        return opNode(Opcodes.INVOKE, heap, receiver, opNode(method).id, actuals);
+    }
+
+    public PegNode actuals(int...actuals) {
+        return opNode(Opcodes.ACTUALS, actuals);
+    }
+
+    public PegNode invokeToPeg(int invocation) {
+        return opNode(Opcodes.INVOKE_TO_PEG, invocation);
+    }
+
+    public PegNode invocationToHeapState(int invocation) {
+        return opNode(Opcodes.INVOKE_TO_HEAP_STATE, invocation);
+    }
+
+    public PegNode invocationToExceptionStatus(int invocation) {
+        return opNode(Opcodes.INVOKE_TO_EXCEPTION_STATUS, invocation);
+    }
+
+    public PegNode invocationThrew(int invocation) {
+        return opNode(Opcodes.INVOCATION_THREW, invocation);
+    }
+
+    public PegNode.Heap projectHeap(int invocation) {
+        return heap(invocationToHeapState(invocation).id, invocationToExceptionStatus(invocation).id);
+    }
+
+    public PegNode newObject(final String type, final int actuals, final int heap) {
+        return opNode(Opcodes.NEW, stringLit(type).id, actuals, heap);
+    }
+
+    public PegNode instanceOf(final int val, final String objName) {
+        return opNode(Opcodes.INSTANCEOF, val, stringLit(objName).id);
+    }
+
+    /**
+     * Pass node for a theta node
+     * @param condition
+     * @return
+     */
+    public PegNode pass(int condition) {
+        return opNode(Opcodes.PASS, condition);
+    }
+
+    /**
+     * Eval node for a theta anode
+     * @param seq
+     * @param pass
+     * @return
+     */
+    public PegNode eval(int seq, int pass) {
+        return opNode(Opcodes.EVAL, seq, pass);
+    }
+
+    /**
+     * Get a heap node with {@code state} and {@code status} arguments, creating and caching one if one doesn't
+     * already exist.
+     * @param state
+     * @param status
+     * @return t
+     * @throws IllegalStateException if the cached node is not a {@code PegNode.Heap}
+     * @throws NullPointerException if either argument is {@code null}
+     */
+     public PegNode.Heap heap(int state, int status) {
+         final int hash = InternTable.hash(Opcodes.HEAP, state, status);
+         PegNode node = symbolLookup.find(Opcodes.HEAP, hash, 2, state, status, 0, null);
+         if (node == null) {
+             node = intern(Opcodes.HEAP, hash, 2, state, status, 0, null, () -> new PegNode.Heap(this, state, status));
+         }
+         if (node.isHeap()) {
+             return (PegNode.Heap) node;
+         }
+         final PegNode cached = node;
+         return cached.asHeap().orElseThrow(() -> new IllegalStateException(
+                 String.format("Unexpected value cached for sym=\"heap\", children=[%d, %d]; expected a PegNode.Heap " +
+                         "but found %s", state, status, cached.toDerefString())));
+     }
+
+    /**
+     * Get the initial heap, indexed at 0, to represent the heap coming into a method.
+     * This should be the same for all methods since we are assuming that all methods are
+     * executed with the same heap environment.
+     *
+     * NOTE: This will have to change for inlining; I'll mark this as a TODO
+     * @return the initial heap {@code PegNode}
+     */
+    public PegNode.Heap initialHeap() {
+      return heap(intLit(0).id, unit().id);
+    }
+
+    public PegNode.Heap wrHeap(int path, int val, PegNode.Heap heap) {
+         return heap.withState(wr(path, val, heap.id).id);
+    }
+
+    public PegNode nullLit() {
+        return opNode(Opcodes.NULL);
+    }
+
+    public PegNode isnull(int valId) {
+        return opNode(Opcodes.ISNULL, valId);
+    }
+
+    /**
+     * @return {@code (isunit? valId)}, or {@code true} if {@code valId} is {@code unit}
+     */
+    public PegNode isunit(int valId) {
+        if (isUnit(valId)) return boolLit(true);
+        return opNode(Opcodes.ISUNIT, valId);
+    }
+
+    public PegNode exception(final String name) {
+        return opNode(name);
+    }
+
+    /**
+     * An exception status of the form {@code (phi (isunit? base) chain base)}, where {@code chain} is
+     * {@code (phi guard_n exc_n (phi guard_n-1 exc_n-1 ... unit))}, and {@code guard_i} holds if the {@code i}th
+     * condition does and no earlier one does
+     */
+    private static final class ExceptionChain {
+        final int base;
+        final int chain;
+        final ExitConditions conditions;
+
+        ExceptionChain(final int base, final int chain, final ExitConditions conditions) {
+            this.base = base;
+            this.chain = chain;
+            this.conditions = conditions;
+        }
+    }
+
+    /**
+     * <p>Get the exception status after evaluating an expression that throws {@code exception} if {@code condition}
+     * holds: {@code status} if an exception has already been thrown, and otherwise {@code exception} if
+     * {@code condition} holds and unit if it doesn't.</p>
+     *
+     * <p>Rather than wrapping {@code status} in another unit check for every expression that can throw, which nests
+     * the checks as deep as there are such expressions, the status is built as a base status (unit on entry to a
+     * method) and a flat chain of exceptions, each guarded by its condition holding and none of the earlier ones
+     * holding (see {@link ExceptionChain}). Since the guards are mutually exclusive, adding an exception adds a node
+     * to the top of the chain, and translations that agree on the first exceptions share that part of the chain. A
+     * status this method didn't build (after a method call, a branch or a loop, say) starts a new chain.</p>
+     * @return the new status's id
+     */
+    public int guardedException(final int status, final PegNode condition, final PegNode exception) {
+        final ExceptionChain previous = exceptionChains.get(status);
+        final int base = previous == null ? status : previous.base;
+        final int chain = previous == null ? unit().id : previous.chain;
+        final ExitConditions conditions = previous == null ? ExitConditions.none() : previous.conditions;
+
+        final int guard = conditions.isEmpty() ? condition.id
+                : and(not(conditions.disjunction(this).id).id, condition.id).id;
+        final int newChain = simplePhi(guard, exception.id, chain).id;
+        final int newStatus = isUnit(base) ? newChain : simplePhi(isunit(base).id, newChain, base).id;
+        exceptionChains.putIfAbsent(newStatus, new ExceptionChain(base, newChain, conditions.with(condition)));
+        return newStatus;
+    }
+
+    public PegNode returnNode(final int pegId, final int heapId) {
+        return opNode(Opcodes.RETURN_NODE, pegId, heapId);
+    }
+
+    public PegNode nilContext() {
+        return opNode(Opcodes.CTX_NIL);
+    }
+
+    public PegNode consContext(final String key, final int valId, final int contextTailId) {
+        return opNode(Opcodes.CTX_CONS, stringLit(key).id, valId, contextTailId);
+    }
+
+    public PegNode maxExpr(final String startPos, final int pegId, final PegContext ctx) {
+        return opNode(Opcodes.MAX_EXPR, stringLit(startPos).id, pegId, ctx.asPegNode().id, ctx.heap.id);
+    }
+
+    /*
+     * Arrays literals are formed as linked lists
+     */
+    public PegNode nilArray() {
+        return opNode(Opcodes.ARRAY_NIL);
+    }
+
+    public PegNode consArray(final int valId, final int tailId) {
+      return opNode(Opcodes.ARRAY_CONS, valId, tailId);
+    }
+
+    public PegNode arrayAccess(final int nameId, final int idxId) {
+      return opNode(Opcodes.ARRAY_ACCESS, nameId, idxId);
+    }
+
+    /**
+     * @param objId the object to be cast
+     * @param typeId the type to be cast to
+     * @return A PEG representing if a cast is legal or not.
+     */
+    public PegNode canCast(final int objId, final int typeId) {
+        return opNode(Opcodes.CAN_CAST, objId, typeId);
+    }
+
+    /**
+     * Return a node representing a type name, such as "java.lang.Object"
+     * @param name type name to embed in a PEG node
+     * @return a PEG node representing that type name
+     */
+    public PegNode typeName(final String name) {
+        return opNode(Opcodes.TYPE_NAME, stringLit(name).id);
+    }
+
+    // Implement a generic linked list
+
+    /**
+     * The Nil from a generic linked list
+     * @return an empty linked list
+     */
+    public PegNode nil() {
+        return opNode(Opcodes.NIL);
+    }
+
+    /**
+     * the Cons operator from a generic linked list
+     * @param headId id of the value to be stored
+     * @param tailId id of the tail to be stored
+     * @return a new linked list with length len(tail) + 1
+     */
+    public PegNode cons(final int headId, final int tailId) {
+        return opNode(Opcodes.CONS, headId, tailId);
+    }
+
+
+    /**
+     * Return a `type-annotation` node. This is used to include type information
+     * for values. If no information is given for a value (say, type), `nil` is
+     * produced by default.
+     *
+     * E.g, {@code typeAnnotations("int", null, null)} will produce PegNode
+     * {@code (type-annotation (string-lit "int") nil nil)}
+     *
+     * @param type the literal type of a value
+     * @param interfaces the interfaces this value implements
+     * @param superClasses the list of superclasses this value's type extends, in order.
+     * @return a (type-annotation type interfaces superclasses) node.
+     */
+    public PegNode typeAnnotationNode(final String type, final List<String> interfaces, final List<String> superClasses) {
+        // First get a stringLit node for type, or `nil` for no type
+        final PegNode typeNode = type == null ? nil() : stringLit(type);
+
+        // Next, sort "interfaces" (in reverse order, since we will be creating a linked list out of them). This will
+        // give a canonical ordering to the interfaces so that we don't need to do any AC stuff in the egraph. That way
+        // ematching will always fire when possible.
+
+        PegNode iList = nil();
+        if (interfaces != null) {
+            interfaces.sort(Comparator.reverseOrder());
+            for (String i : interfaces) {
+                iList = cons(stringLit(i).id, iList.id);
+            }
+        }
+
+        // Finally, let's get the superclasses. These don't need to be sorted because we want the
+        // inheritance order to remain intact.
+
+        PegNode scList = nil();
+        if (superClasses != null) {
+            for (int i = superClasses.size() - 1; i >= 0 ; --i ) {
+                scList = cons(stringLit(superClasses.get(i)).id, scList.id);
+            }
+        }
+        return opNode(Opcodes.TYPE_ANNOTATION, typeNode.id, iList.id, scList.id);
+    }
+
+    /**
+     * @param objId id of the object to be cast
+     * @param typeId type to cast the object to
+     * @return a cast node
+     */
+    public PegNode cast(final int objId, final int typeId) {
+        return opNode(Opcodes.CAST, objId, typeId);
+    }
+
+    /**
+     * @return the disjunction of {@code conditions}, in increasing id order. {@code false} conditions are dropped, and
+     *         if any condition is {@code true} then so is the disjunction.
+     */
+    public PegNode exitConditions(Collection<PegNode> conditions) {
+        for (PegNode c : new HashSet<>(conditions)) {
+            if (c == null) {
+                throw new IllegalStateException("Found null condition");
+            }
+        }
+        final List<Integer> childs = new ArrayList<>(conditions.size());
+        for (PegNode c : conditions) {
+            if (isTrue(c.id)) return c;
+            if (!isFalse(c.id)) childs.add(c.id);
+        }
+        childs.sort(null);
+
+        if (childs.isEmpty()) return boolLit(false);
+        if (childs.size() == 1) return idLookup(childs.get(0)).orElseThrow(IllegalStateException::new);
+
+        Integer id = childs.get(0);
+        childs.remove(0);
+        for (Integer childId : childs) {
+            id = opNode(Opcodes.OR, id, childId).id;
+        }
+        return idLookup(id).orElseThrow(IllegalStateException::new);
+    }
+
+    /**
+     * @param disjunction the {@link #exitConditions} of some conditions
+     * @param condition a condition whose id is larger than theirs
+     * @return the {@link #exitConditions} of those conditions and {@code condition}
+     */
+    PegNode orExitCondition(final PegNode disjunction, final PegNode condition) {
+        if (isTrue(disjunction.id) || isFalse(condition.id)) return disjunction;
+        if (isTrue(condition.id) || isFalse(disjunction.id)) return condition;
+        return opNode(Opcodes.OR, disjunction.id, condition.id);
+    }
+
+    /**
+     * @param node1 the id of the first PEG to compute a bijection over
+     * @param node2 the id of the second PEG to compute a bijection over
+     * @return returns true when a bijection exists between the ThetaNode ids
+     * such that node1 and node2 are structurally equivalent, otherwise returns false
+     * @throws IllegalArgumentException if the node1 or node2 are invalid ids
+     */
+    public boolean isStructuralBijection(Integer node1, Integer node2) {
+        if (idLookup.get(node1) == null || idLookup.get(node2) == null) {
+            throw new IllegalArgumentException();
+        }
+        // potential bijection between theta-nodes
+        Map<Integer, Integer> bijection1 = new HashMap<>();
+        Map<Integer, Integer> bijection2 = new HashMap<>();
+        // queue of pegnodes to compare
+        Stack<Integer> s1 = new Stack<>();
+        Stack<Integer> s2 = new Stack<>();
+        s1.add(node1);
+        s2.add(node2);
+        while (!s1.isEmpty() && !s2.isEmpty()) {
+            Integer id1 = s1.pop();
+            Integer id2 = s2.pop(); 
+            PegNode peg1 = idLookup.get(id1);
+            PegNode peg2 = idLookup.get(id2);
+            // theta nodes
+            if (peg1.isThetaNode() && peg2.isThetaNode()) {
+                PegNode.ThetaNode thetaNode1 = peg1.asThetaNode().get();
+                PegNode.ThetaNode thetaNode2 = peg2.asThetaNode().get();
+                // make sure thetas are assigned
+                if (!thetaNode1.getContinuation().isPresent() || !thetaNode2.getContinuation().isPresent()) {
+                        return false;
+                }
+                // ids are part of a bijection
+                if (bijection1.containsKey(id1) && bijection2.containsKey(id2)) {
+                    // make sure its with each other
+                    if (!bijection1.get(id1).equals(id2) || !bijection2.get(id2).equals(id1)) {
+                        return false;
+                    } else {
+                        continue;
+                    }
+                // one id is part of a bijection, but not with the other
+                } else if (bijection1.containsKey(id1) || bijection2.containsKey(id2)) {
+                    return false;
+                // neither id is part of a bijection, so we can form one
+                } else {
+                    s1.push(thetaNode1.init);
+                    s2.push(thetaNode2.init);
+                    s1.push(thetaNode1.getContinuation().get().id);
+                    s2.push(thetaNode2.getContinuation().get().id);
+                    bijection1.put(id1, id2);
+                    bijection2.put(id2, id1);
+                    continue;
+                }
+            // opnodes
+            } else if (peg1.isOpNode() && peg2.isOpNode()) {
+                PegNode.OpNode opNode1 = peg1.asOpNode().get();
+                PegNode.OpNode opNode2 = peg2.asOpNode().get();
+                // make sure operation is the same
+                if (opNode1.opcode != opNode2.opcode) {
+                    return false;
+                }
+                // compare all children
+                for (int child : opNode1.children) s1.push(child);
+                for (int child : opNode2.children) s2.push(child);
+            // either different types or both literals
+            } else {
+                // fail if different types or non-equal literals
+                if (!peg1.equals(peg2)) {
+                    return false;
+                }
+            }
+        }
+        // make sure number of children was consistent
+        if (!s1.isEmpty() || !s2.isEmpty()) {
+            throw new IllegalStateException();
+        }
+        return true;
+    }
+
+    /**
+     * A read-only {@code Map} view of the id table. Lookups index directly into the table; iteration walks the
+     * allocated ids in order, skipping ids without a node.
+     */
+    private class IdLookupView extends AbstractMap<Integer, PegNode> {
+        @Override
+        public PegNode get(final Object key) {
+            return key instanceof Integer ? idLookup.get((Integer) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<Integer, PegNode>> entrySet() {
+            return new AbstractSet<Entry<Integer, PegNode>>() {
+                @Override
+                public Iterator<Entry<Integer, PegNode>> iterator() {
+                    return new Iterator<Entry<Integer, PegNode>>() {
+                        final int bound = size();
+                        int next = advance(0);
+
+                        private int advance(int id) {
+                            while (id < bound && idLookup.get(id) == null) ++id;
+                            return id;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < bound;
+                        }
+
+                        @Override
+                        public Entry<Integer, PegNode> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            final PegNode node = idLookup.get(next);
+                            next = advance(next + 1);
+                            return new SimpleImmutableEntry<>(node.id, node);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    final int bound = PegGraph.this.size();
+                    for (int id = 0; id < bound; ++id) {
+                        if (idLookup.get(id) != null) ++size;
+                    }
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package serializer.peg;
+
+import serializer.peg.visitor.PegVisitor;
+
+import java.util.List;
+
+/**
+ * <p>A graph-to-graph optimizer for finished PEGs. Optimizing a PEG rebuilds it, bottom up, in a separate output
+ * graph through {@code PegGraph}'s simplifying constructors, so that simplifications enabled by a child's
+ * simplification are found too. In particular:</p>
+ *
+ * <ul>
+ *     <li>constants are propagated: an operator whose operands become literals is folded
+ *     (see {@link ConstantFolder}), and a phi whose guard becomes a literal, or whose arms become the same node, is
+ *     replaced by the arm it selects</li>
+ *     <li>a loop-invariant theta, whose continuation is either the theta itself or its initializer, is replaced by
+ *     its initializer</li>
+ *     <li>exit-condition disjuncts that become {@code false} are dropped, along with the {@code ||}s joining them</li>
+ *     <li>a read of a field that was just written through the same path is the written value, and a write over such
+ *     a write replaces it (see {@link PegGraph#rd} and {@link PegGraph#wr})</li>
+ * </ul>
+ *
+ * <p>Results are memoized by input node, so optimizing the original method and each of its mutants with one
+ * optimizer shares their common nodes in the output graph, just as translation does. Only reachable nodes are
+ * copied, so the output graph holds no dead nodes.</p>
+ *
+ * <p>A theta is copied before its continuation is optimized (the continuation refers back to the theta), so a theta
+ * that only becomes invariant once its continuation is simplified is kept.</p>
+ */
+public class PegOptimizer extends PegVisitor<PegNode, Void> {
+    /**
+     * The graph that optimized nodes are built in
+     */
+    public final PegGraph graph;
+
+    public PegOptimizer(final PegGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * @param peg a finished PEG: every theta it reaches has a continuation
+     * @return the node in {@link #graph} equal to {@code peg}
+     * @throws IllegalStateException if {@code peg} reaches a theta with no continuation
+     */
+    public PegNode optimize(final PegNode peg) {
+        return peg.accept(this, null);
+    }
+
+    @Override
+    public PegNode visit(final PegNode.ThetaNode node, final Void arg) {
+        if (table.containsKey(node)) {
+            return table.get(node);
+        }
+        final PegNode init = node.getInitializer().accept(this, arg);
+        final PegNode cont = node.getContinuation().orElseThrow(
+                () -> new IllegalStateException("Cannot optimize a theta with no continuation: " + node));
+        if (cont == node || cont.id == node.init) {
+            table.put(node, init);
+            return init;
+        }
+        final PegNode.ThetaNode theta = graph.theta(init.id);
+        table.put(node, theta);
+        theta.setContinuation(cont.accept(this, arg).id);
+        return theta;
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.OpNode node, final Void arg, final List<PegNode> children) {
+        if (node.isHeap()) {
+            return graph.heap(children.get(0).id, children.get(1).id);
+        }
+        // Names are interned per graph, so the optimized graph has opcodes of its own for them
+        final int opcode = node.opcode < Opcodes.size() ? node.opcode : graph.intern(node.op());
+        if (opcode == Opcodes.NOT) return graph.not(children.get(0).id);
+        if (opcode == Opcodes.ISUNIT) return graph.isunit(children.get(0).id);
+        if (opcode == Opcodes.OR) return graph.or(children.get(0).id, children.get(1).id);
+        if (opcode == Opcodes.AND) return graph.and(children.get(0).id, children.get(1).id);
+        if (opcode == Opcodes.RD) return graph.rd(children.get(0).id, children.get(1).id);
+        if (opcode == Opcodes.WR) return graph.wr(children.get(0).id, children.get(1).id, children.get(2).id);
+        return graph.opNode(opcode, children.stream().mapToInt(c -> c.id).toArray());
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.PhiNode node, final Void arg,
+                              final PegNode guard, final PegNode thn, final PegNode els) {
+        return graph.simplePhi(guard.id, thn.id, els.id);
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.IntLit node, final Void arg) {
+        return graph.intLit(node.value);
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.LongLit node, final Void arg) {
+        return graph.longLit(node.value);
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.BoolLit node, final Void arg) {
+        return graph.boolLit(node.value);
+    }
+
+    @Override
+    protected PegNode combine(final PegNode.StringLit node, final Void arg) {
+        return graph.stringLit(node.value);
+    }
+}
@@ -2,10 +2,8 @@ package serializer.peg;
 
 import serializer.peg.visitor.PegVisitor;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.util.*;
 
 public class PegPrinter {
 
@@ -16,6 +14,183 @@ public class PegPrinter {
     return String.format("Peg: %s\nIdentifications: %s", pegString, table);
   }
 
+  /**
+   * Write {@code root} to {@code out}, printing each node once. Unlike {@code PegNode.toDerefString()}, which
+   * re-expands a shared subterm everywhere it occurs, subterms that occur more than once (and every theta node) are
+   * bound by a {@code let} and referred to by id:
+   *
+   * <pre>
+   * (let ((%3 (theta 0 (blank 0)))
+   *       (%5 (+ %3 1)))
+   *   (&lt; %5 %5)
+   *   (&lt;=&gt; %3 %5))
+   * </pre>
+   *
+   * Each {@code (<=> theta continuation)} line gives a theta's continuation. A PEG with no sharing and no thetas is
+   * written just as {@code toDerefString()} would write it.
+   *
+   * @param root the PEG to write
+   * @param out where to write it
+   * @throws IOException if {@code out} throws
+   */
+  public static void write(final PegNode root, final Writer out) throws IOException {
+    new DagWriter(root, out).write();
+  }
+
+  /**
+   * Write {@code root} to {@code out} as described in {@link #write(PegNode, Writer)}
+   */
+  public static void print(final PegNode root, final PrintStream out) {
+    final PrintWriter writer = new PrintWriter(out);
+    try {
+      write(root, writer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    writer.flush();
+  }
+
+  /**
+   * @return {@code root} as written by {@link #write(PegNode, Writer)}
+   */
+  public static String toSharedString(final PegNode root) {
+    final StringWriter out = new StringWriter();
+    try {
+      write(root, out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Writes a PEG as a {@code let} over its shared subterms. Nodes are visited once to count references, and each
+   * node is then written exactly once; nothing recurses, so deep PEGs don't overflow the stack.
+   */
+  private static class DagWriter {
+    private final PegNode root;
+    private final PegGraph graph;
+    private final Writer out;
+    /**
+     * Number of references to each node reachable from {@code root}, including theta continuation edges
+     */
+    private final Map<Integer, Integer> refs = new HashMap<>();
+    private final List<PegNode.ThetaNode> thetas = new ArrayList<>();
+    private final Set<Integer> bound = new TreeSet<>();
+
+    DagWriter(final PegNode root, final Writer out) {
+      this.root = root;
+      this.graph = root.graph;
+      this.out = out;
+    }
+
+    void write() throws IOException {
+      countReferences();
+      if (bound.isEmpty()) {
+        writeTerm(root);
+        return;
+      }
+      out.write("(let (");
+      boolean first = true;
+      for (int id : bound) {
+        if (!first) out.write("\n      ");
+        first = false;
+        out.write("(%" + id + " ");
+        writeTerm(graph.get(id));
+        out.write(")");
+      }
+      out.write(")\n  ");
+      writeChild(root);
+      for (PegNode.ThetaNode theta : thetas) {
+        final Optional<PegNode> continuation = theta.getContinuation();
+        if (continuation.isPresent()) {
+          out.write("\n  (<=> %" + theta.id + " ");
+          writeChild(continuation.get());
+          out.write(")");
+        }
+      }
+      out.write(")");
+    }
+
+    private void countReferences() {
+      final Deque<PegNode> worklist = new ArrayDeque<>();
+      worklist.push(root);
+      refs.put(root.id, 1);
+      while (!worklist.isEmpty()) {
+        final PegNode node = worklist.pop();
+        for (int i = 0; i < node.arity(); ++i) {
+          reference(node.child(i), worklist);
+        }
+        if (node.isThetaNode()) {
+          final PegNode.ThetaNode theta = (PegNode.ThetaNode) node;
+          thetas.add(theta);
+          bound.add(theta.id);
+          theta.getContinuation().ifPresent(c -> reference(c.id, worklist));
+        }
+      }
+      thetas.sort(Comparator.comparingInt(t -> t.id));
+      for (Map.Entry<Integer, Integer> entry : refs.entrySet()) {
+        if (entry.getValue() > 1 && graph.get(entry.getKey()).arity() > 0) {
+          bound.add(entry.getKey());
+        }
+      }
+    }
+
+    private void reference(final int id, final Deque<PegNode> worklist) {
+      final Integer count = refs.get(id);
+      refs.put(id, count == null ? 1 : count + 1);
+      if (count == null) {
+        worklist.push(graph.get(id));
+      }
+    }
+
+    /**
+     * Write {@code node} by name if it is bound, and otherwise in full
+     */
+    private void writeChild(final PegNode node) throws IOException {
+      if (bound.contains(node.id)) {
+        out.write("%" + node.id);
+      } else {
+        writeTerm(node);
+      }
+    }
+
+    /**
+     * Write {@code node} in full, writing its bound descendants by name
+     */
+    private void writeTerm(final PegNode node) throws IOException {
+      if (!(node instanceof PegNode.OpNode)) {
+        out.write(node.toString());
+        return;
+      }
+      // Each frame is an OpNode being written and the index of its next child
+      final Deque<PegNode.OpNode> nodes = new ArrayDeque<>();
+      final Deque<Integer> nextChild = new ArrayDeque<>();
+      out.write("(" + ((PegNode.OpNode) node).op());
+      nodes.push((PegNode.OpNode) node);
+      nextChild.push(0);
+      while (!nodes.isEmpty()) {
+        final PegNode.OpNode parent = nodes.peek();
+        final int i = nextChild.pop();
+        if (i == parent.arity()) {
+          out.write(")");
+          nodes.pop();
+          continue;
+        }
+        nextChild.push(i + 1);
+        out.write(" ");
+        final PegNode child = graph.get(parent.child(i));
+        if (bound.contains(child.id) || !(child instanceof PegNode.OpNode)) {
+          writeChild(child);
+        } else {
+          out.write("(" + ((PegNode.OpNode) child).op());
+          nodes.push((PegNode.OpNode) child);
+          nextChild.push(0);
+        }
+      }
+    }
+  }
+
   /**
    * Visitor used by PegPrinter to create a string
    */
@@ -72,7 +247,7 @@ public class PegPrinter {
     @Override
     protected String combine(PegNode.OpNode node, Void arg, List<String> children) {
       StringBuilder sb = new StringBuilder("(");
-      sb.append(node.op);
+      sb.append(node.op());
       for (String child : children) {
         sb.append(" ");
         sb.append(child);
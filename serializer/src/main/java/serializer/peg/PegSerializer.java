@@ -37,7 +37,9 @@ public class PegSerializer {
         System.out.println("* " + file);
         for (final String meth : translated.keySet()) {
           final PegNode node = translated.get(meth);
-          System.out.printf("%s: %s\n", meth, node.toDerefString());
+          System.out.printf("%s: ", meth);
+          PegPrinter.print(node, System.out);
+          System.out.println();
         }
       } catch (FileNotFoundException e) {
         System.out.println("Couldn't load file " + file);
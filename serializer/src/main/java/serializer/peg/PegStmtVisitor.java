@@ -10,16 +10,27 @@ import serializer.peg.testing.TestPairs;
 import com.google.common.collect.ImmutableSet;
 
 import java.util.*;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegContext> {
-    final PegExprVisitor pev = new PegExprVisitor();
+    /**
+     * The graph that this visitor allocates {@code PegNode}s in
+     */
+    public final PegGraph graph;
+    final PegExprVisitor pev;
     /**
      * Map methods to all collected TestPairs
      */
     public TestPairs testPairs;
+    /**
+     * Finds what a loop may change from its context on entry and its condition, body and update expressions
+     */
+    BiFunction<PegContext, List<Node>, LoopEffects> loopEffects = LoopEffects::of;
 
-    public PegStmtVisitor(boolean scrapeComments) {
+    public PegStmtVisitor(final PegGraph graph, boolean scrapeComments) {
+        this.graph = graph;
+        this.pev = new PegExprVisitor(graph);
         testPairs = new TestPairs(scrapeComments);
     }
 
@@ -29,7 +40,20 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
 
     @Override
     public ExpressionResult visit(MethodDeclaration n, PegContext ctx) {
-        final ExpressionResult result = super.visit(n, ctx);
+        return visitMethod(n, ctx, 0, null);
+    }
+
+    /**
+     * Translate method {@code n}, or only the part of its body from its {@code from}th top-level statement on
+     * @param ctx the context before the {@code from}th statement, which is the context on entry if {@code from} is 0
+     * @param checkpoints if not {@code null}, the context before each top-level statement that is translated is
+     *                    added to it
+     */
+    ExpressionResult visitMethod(final MethodDeclaration n, final PegContext ctx, final int from,
+                                 final List<PegContext> checkpoints) {
+        final ExpressionResult result = n.getBody().isPresent() && (from > 0 || checkpoints != null)
+                ? visitStatements(n.getBody().get(), ctx, from, checkpoints)
+                : super.visit(n, ctx);
         testPairs.scrape(n, result);
         // Test if there was an implicit return node at the end of the method, and if so, if there was another
         // explicit return node in the body somewhere
@@ -72,14 +96,28 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
         final ExpressionResult er = ctx.getPathFromFieldAccessExpr(fieldAccess, pev);
         ctx = er.context;
         final PegNode target = er.peg;
-        return ctx.withHeap(PegNode.wrHeap(target.id, value.id, ctx.heap));
+        return ctx.withHeap(graph.wrHeap(target.id, value.id, ctx.heap));
     }
 
     @Override
     public ExpressionResult visit(BlockStmt n, PegContext ctx) {
+        return visitStatements(n, ctx, 0, null);
+    }
+
+    /**
+     * Translate {@code n}'s statements from the {@code from}th on, starting in {@code ctx}
+     * @param checkpoints if not {@code null}, the context before each statement is added to it
+     */
+    private ExpressionResult visitStatements(final BlockStmt n, final PegContext ctx, final int from,
+                                             final List<PegContext> checkpoints) {
+        final NodeList<Statement> statements = n.getStatements();
         ExpressionResult er = ctx.exprResult();
-        for (Statement s : n.getStatements()) {
-            er = s.accept(this, er.context);
+        for (int i = from; i < statements.size(); ++i) {
+            graph.checkBudget();
+            if (checkpoints != null) {
+                checkpoints.add(er.context);
+            }
+            er = statements.get(i).accept(this, er.context);
             if (er == null || er.context == null) {
                 throw new IllegalStateException("Null context after visit");
             }
@@ -89,7 +127,7 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
 
     @Override
     public ExpressionResult visit(ExpressionStmt n, PegContext ctx) {
-        final ExpressionResult result = n.accept(pev, ctx).withPeg(PegNode.unit());
+        final ExpressionResult result = n.accept(pev, ctx).withPeg(graph.unit());
         testPairs.scrape(n, result);
         return result;
     }
@@ -144,7 +182,7 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
             final ExpressionResult er = n.getExpression().get().accept(pev, ctx);
             ctx = er.context.withReturnNode(er.peg);
         } else {
-            ctx = ctx.withReturnNode(PegNode.unit());
+            ctx = ctx.withReturnNode(graph.unit());
         }
 
         testPairs.scrape(n, ctx.exprResult());
@@ -154,51 +192,7 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
 
     @Override
     public ExpressionResult visit(WhileStmt n, PegContext ctx) {
-        // init theta nodes
-        ImmutableSet<String> vars = ctx.localVariableLookup.keySet();
-        List<String> sortedVars = vars.stream().filter(s -> !s.equals("this")).sorted().collect(Collectors.toList());
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.theta(ctx.getLocalVar(var).id));
-        }
-        PegNode.ThetaNode initState = PegNode.theta(ctx.heap.state);
-        PegNode.ThetaNode initStatus = PegNode.theta(ctx.heap.status);
-        PegContext initCtx = ctx.withHeap(PegNode.heap(initState.id, initStatus.id));
-
-        // visit cond and apply side effects
-        ExpressionResult cond = n.getCondition().accept(pev, initCtx);
-        testPairs.scrape(n, cond, "cond");
-        ctx = cond.context;
-
-        // visit body and apply side effects
-        ExpressionResult body = n.getBody().accept(this, ctx);
-        ctx = body.context;
-
-        // theta assignment
-        for (String var: sortedVars) {
-            initCtx.getLocalVar(var)
-                    .asThetaNode()
-                    .orElseThrow(IllegalStateException::new)
-                    .setContinuation(ctx.getLocalVar(var).id);
-        }
-        initState.setContinuation(ctx.heap.state);
-        initStatus.setContinuation(ctx.heap.status);
-
-        testPairs.scrape(n, ctx.exprResult(), "body");
-
-        // act as if we visit the condition a final time
-        ctx = cond.context;
-
-        // construct eval nodes
-        PegNode pass = PegNode.pass(cond.peg.id);
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.eval(ctx.getLocalVar(var).id, pass.id));
-        }
-        PegNode state = PegNode.eval(ctx.heap.state, pass.id);
-        PegNode status = PegNode.eval(ctx.heap.status, pass.id);
-        ctx = ctx.withHeap(PegNode.heap(state.id, status.id));
-       
-        testPairs.scrape(n, ctx.exprResult());
-        return ctx.exprResult();
+        return translateLoop(n, ctx, n.getCondition(), n.getBody(), Collections.emptyList(), "body");
     }
 
     @Override
@@ -206,53 +200,7 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
         // visit body once
         ExpressionResult er = n.getBody().accept(this, ctx);
         testPairs.scrape(n, er, "initbody");
-        ctx = er.context;
-
-        // init theta nodes
-        ImmutableSet<String> vars = ctx.localVariableLookup.keySet();
-        List<String> sortedVars = vars.stream().filter(s -> !s.equals("this")).sorted().collect(Collectors.toList());
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.theta(ctx.getLocalVar(var).id));
-        }
-        PegNode.ThetaNode initState = PegNode.theta(ctx.heap.state);
-        PegNode.ThetaNode initStatus = PegNode.theta(ctx.heap.status);
-        PegContext initCtx = ctx.withHeap(PegNode.heap(initState.id, initStatus.id));
-
-        // visit cond and apply side effects
-        ExpressionResult cond = n.getCondition().accept(pev, initCtx);
-        testPairs.scrape(n, cond, "cond");
-        ctx = cond.context;
-
-        // visit body and apply side effects
-        ExpressionResult body = n.getBody().accept(this, ctx);
-        ctx = body.context;
-
-        // theta assignment
-        for (String var: sortedVars) {
-            initCtx.getLocalVar(var)
-                    .asThetaNode()
-                    .orElseThrow(IllegalStateException::new)
-                    .setContinuation(ctx.getLocalVar(var).id);
-        }
-        initState.setContinuation(ctx.heap.state);
-        initStatus.setContinuation(ctx.heap.status);
-
-        testPairs.scrape(n, ctx.exprResult(), "loopbody");
-
-        // act as if we visit the condition a final time
-        ctx = cond.context;
-
-        // construct eval nodes
-        PegNode pass = PegNode.pass(cond.peg.id);
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.eval(ctx.getLocalVar(var).id, pass.id));
-        }
-        PegNode state = PegNode.eval(ctx.heap.state, pass.id);
-        PegNode status = PegNode.eval(ctx.heap.status, pass.id);
-        ctx = ctx.withHeap(PegNode.heap(state.id, status.id));
-       
-        testPairs.scrape(n, ctx.exprResult());
-        return ctx.exprResult();
+        return translateLoop(n, er.context, n.getCondition(), n.getBody(), Collections.emptyList(), "loopbody");
     }
 
     @Override
@@ -263,56 +211,114 @@ public class PegStmtVisitor extends GenericVisitorAdapter<ExpressionResult, PegC
         }
         testPairs.scrape(n, ctx.exprResult(), "init");
 
+        Expression condExpr = n.getCompare().orElseGet(() -> new BooleanLiteralExpr(true));
+        return translateLoop(n, ctx, condExpr, n.getBody(), n.getUpdate(), "body");
+    }
+
+    /**
+     * Translate a loop that evaluates {@code condition}, and then, while it holds, {@code body} and {@code update}.
+     * Only the variables and heap components that {@link LoopEffects} finds the loop may change get thetas (and
+     * evals); the rest keep their values from before the loop, except for the heap's status, which always gets an eval
+     * so that the loop's termination isn't lost. If the loop turns out to change anything else, it is translated
+     * again with thetas for every local variable and for the heap's state and status.
+     * @param loop the loop statement, whose comments hold test cases
+     * @param ctx the context on entry to the loop
+     * @param bodyTag the tag of {@code loop}'s test case for the context after one iteration
+     */
+    private ExpressionResult translateLoop(final Statement loop, final PegContext ctx, final Expression condition,
+                                           final Statement body, final List<Expression> update, final String bodyTag) {
+        final List<Node> parts = new ArrayList<>();
+        parts.add(condition);
+        parts.add(body);
+        parts.addAll(update);
+        final List<String> vars = ctx.getLocalNames().stream().filter(s -> !s.equals("this")).sorted()
+                .collect(Collectors.toList());
+        final PegGraph.Checkpoint checkpoint = graph.isConcurrent() ? null : graph.checkpoint();
+        final int scraped = testPairs.worklist.size();
+        final ExpressionResult result = translateLoop(loop, ctx, condition, body, update, bodyTag, vars,
+                loopEffects.apply(ctx, parts));
+        if (result != null) {
+            return result;
+        }
+        // Drop the first translation's nodes and test cases where the graph allows it. On a concurrent graph they
+        // stay behind, unreachable but complete.
+        if (checkpoint != null) {
+            graph.rollback(checkpoint);
+        }
+        testPairs.worklist.subList(scraped, testPairs.worklist.size()).clear();
+        return translateLoop(loop, ctx, condition, body, update, bodyTag, vars, LoopEffects.all(vars));
+    }
+
+    /**
+     * Translate a loop with thetas for {@code effects}
+     * @param vars the local variables on entry to the loop
+     * @return the context after the loop, or {@code null} if the loop changed a variable or heap component that
+     *         {@code effects} misses
+     */
+    private ExpressionResult translateLoop(final Statement loop, PegContext ctx, final Expression condition,
+                                           final Statement body, final List<Expression> update, final String bodyTag,
+                                           final List<String> vars, final LoopEffects effects) {
         // init theta nodes
-        ImmutableSet<String> vars = ctx.localVariableLookup.keySet();
-        List<String> sortedVars = vars.stream().filter(s -> !s.equals("this")).sorted().collect(Collectors.toList());
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.theta(ctx.getLocalVar(var).id));
+        final List<String> thetaVars = vars.stream().filter(effects.variables::contains).collect(Collectors.toList());
+        for (String var: thetaVars) {
+            ctx = ctx.setLocalVar(var, graph.theta(ctx.getLocalVar(var).id));
         }
-        PegNode.ThetaNode initState = PegNode.theta(ctx.heap.state);
-        PegNode.ThetaNode initStatus = PegNode.theta(ctx.heap.status);
-        PegContext initCtx = ctx.withHeap(PegNode.heap(initState.id, initStatus.id));
+        PegNode.ThetaNode initState = effects.state ? graph.theta(ctx.heap.state) : null;
+        PegNode.ThetaNode initStatus = effects.status ? graph.theta(ctx.heap.status) : null;
+        PegContext initCtx = ctx.withHeap(graph.heap(initState == null ? ctx.heap.state : initState.id,
+                initStatus == null ? ctx.heap.status : initStatus.id));
 
         // visit cond and apply side effects
-        Expression condExpr = n.getCompare().orElseGet(() -> new BooleanLiteralExpr(true));
-        ExpressionResult cond = condExpr.accept(pev, initCtx);
-        testPairs.scrape(n, cond, "cond");
+        ExpressionResult cond = condition.accept(pev, initCtx);
+        testPairs.scrape(loop, cond, "cond");
         ctx = cond.context;
 
         // visit body and apply side effects
-        ExpressionResult body = n.getBody().accept(this, ctx);
-        ctx = body.context;
+        ctx = body.accept(this, ctx).context;
 
         // apply update expressions
-        for (Expression expr: n.getUpdate()) {
+        for (Expression expr: update) {
             ctx = expr.accept(pev, ctx).context;
         }
 
         // theta assignment
-        for (String var: sortedVars) {
+        for (String var: thetaVars) {
             initCtx.getLocalVar(var)
                     .asThetaNode()
                     .orElseThrow(IllegalStateException::new)
                     .setContinuation(ctx.getLocalVar(var).id);
         }
-        initState.setContinuation(ctx.heap.state);
-        initStatus.setContinuation(ctx.heap.status);
+        if (initState != null) initState.setContinuation(ctx.heap.state);
+        if (initStatus != null) initStatus.setContinuation(ctx.heap.status);
 
-        testPairs.scrape(n, ctx.exprResult(), "body");
+        // check that whatever has no theta is unchanged
+        for (String var: vars) {
+            if (!effects.variables.contains(var) && ctx.getLocalVar(var) != initCtx.getLocalVar(var)) {
+                return null;
+            }
+        }
+        if ((initState == null && ctx.heap.state != initCtx.heap.state)
+                || (initStatus == null && ctx.heap.status != initCtx.heap.status)) {
+            return null;
+        }
+
+        testPairs.scrape(loop, ctx.exprResult(), bodyTag);
 
         // act as if we visit the condition a final time
         ctx = cond.context;
 
         // construct eval nodes
-        PegNode pass = PegNode.pass(cond.peg.id);
-        for (String var: sortedVars) {
-            ctx = ctx.setLocalVar(var, PegNode.eval(ctx.getLocalVar(var).id, pass.id));
+        PegNode pass = graph.pass(cond.peg.id);
+        for (String var: thetaVars) {
+            ctx = ctx.setLocalVar(var, graph.eval(ctx.getLocalVar(var).id, pass.id));
         }
-        PegNode state = PegNode.eval(ctx.heap.state, pass.id);
-        PegNode status = PegNode.eval(ctx.heap.status, pass.id);
-        ctx = ctx.withHeap(PegNode.heap(state.id, status.id));
-       
-        testPairs.scrape(n, ctx.exprResult());
+        final int state = initState == null ? ctx.heap.state : graph.eval(ctx.heap.state, pass.id).id;
+        // The status is evaluated at the loop's exit even if the loop can't change it, so that whether the loop
+        // terminates is still part of the method's result
+        final int status = graph.eval(ctx.heap.status, pass.id).id;
+        ctx = ctx.withHeap(graph.heap(state, status));
+
+        testPairs.scrape(loop, ctx.exprResult());
         return ctx.exprResult();
     }
 
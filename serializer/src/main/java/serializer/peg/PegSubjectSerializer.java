@@ -72,6 +72,7 @@ public class PegSubjectSerializer {
             final MutantsLog mutantsLog = new MutantsLog(logPath);
             final XMLGenerator xmlGen = new XMLGenerator();
             final PegTranslator translator = new PegTranslator();
+            translator.recordCheckpoints();
 
             final Map<String, PegNode> methodMap = translator.translate(cu);
 
@@ -93,7 +94,9 @@ public class PegSubjectSerializer {
 
                 final Set<MutantsLog.Row> rows = mutantsLog.methodNameMap.get(sig);
                 if (printDerefStrings) {
-                    System.out.printf("original: %s\n", methodMap.get(canonical).toDerefString());
+                    System.out.print("original: ");
+                    PegPrinter.print(methodMap.get(canonical), System.out);
+                    System.out.println();
                 }
 
                 for (MutantsLog.Row row : rows) {
@@ -110,7 +113,8 @@ public class PegSubjectSerializer {
                     try {
                         final CompilationUnit mcu = StaticJavaParser.parse(javaFiles.iterator().next());
                         try {
-                            row.pegId = translator.translate(mcu, canonical).id;
+                            row.pegId = translator.translate(mcu, canonical, TranslationBudget.UNLIMITED,
+                                    row.lineNumber).id;
                         } catch (IllegalStateException e) {
                           System.err.println("erroneous mutant id: " + row.id);
                           throw e;
@@ -118,8 +122,9 @@ public class PegSubjectSerializer {
 
                         xmlGen.addMutant(sig, row.id, row.pegId);
                         if (printDerefStrings) {
-                            System.out.printf("mutant %s: %s\n", row.id,
-                                    PegNode.idLookup(row.pegId).map(PegNode::toDerefString));
+                            System.out.printf("mutant %s: ", row.id);
+                            PegPrinter.print(translator.graph.get(row.pegId), System.out);
+                            System.out.println();
                         }
 
                     } catch (FileNotFoundException e) {
@@ -129,8 +134,8 @@ public class PegSubjectSerializer {
             }
 
             // TODO: this involves giving public access to the idLookup which is sketchy.
-            xmlGen.addIdTable(PegNode.getIdLookup());
-            xmlGen.addEquivalences(PegNode.getNodeEquivalences());
+            xmlGen.addIdTable(translator.graph);
+            xmlGen.addEquivalences(translator.graph.getNodeEquivalences());
 
             xmlGen.writeToFile("subjects.xml");
         } catch (FileNotFoundException e) {
@@ -17,7 +17,20 @@ import java.util.stream.Collectors;
  */
 public class PegTranslator {
 
+    /**
+     * The graph that all translated PEGs are allocated in
+     */
+    public final PegGraph graph;
     final Map<String, Integer> failureReasons = new HashMap<>();
+    /**
+     * The budget each method translation is held to, unless another is given
+     */
+    private TranslationBudget budget = TranslationBudget.UNLIMITED;
+    /**
+     * The checkpoints of the methods translated by {@link #translate(CompilationUnit)}, by canonical name, or
+     * {@code null} if they aren't recorded
+     */
+    private Map<String, StatementCheckpoints> checkpoints = null;
     final PegClassVisitor classVisitor = new PegClassVisitor();
     final PegStmtVisitor stmtVisitor;
     /**
@@ -26,15 +39,58 @@ public class PegTranslator {
      */
     public final TestPairs testPairs;
 
-    public PegTranslator(boolean scrapeComments) {
-        stmtVisitor = new PegStmtVisitor(scrapeComments);
+    public PegTranslator(final PegGraph graph, boolean scrapeComments) {
+        this.graph = graph;
+        stmtVisitor = new PegStmtVisitor(graph, scrapeComments);
         testPairs = stmtVisitor.getTestPairs();
     }
 
+    public PegTranslator(final PegGraph graph) {
+        this(graph, false);
+    }
+
+    public PegTranslator(boolean scrapeComments) {
+        this(new PegGraph(), scrapeComments);
+    }
+
     public PegTranslator() {
         this(false);
     }
 
+    public void setBudget(final TranslationBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Record the context before each top-level statement of every method that {@link #translate(CompilationUnit)}
+     * translates from now on, so that translating a mutant of one of them with
+     * {@link #translate(CompilationUnit, String, TranslationBudget, int)} can skip the statements before its mutation
+     */
+    public void recordCheckpoints() {
+        checkpoints = new HashMap<>();
+    }
+
+    /**
+     * Resume mutant translations from the checkpoints that {@code original} records. Since the checkpoints are only
+     * read here, translators running on other threads may share them, as long as {@code original} is done
+     * recording.
+     */
+    public void shareCheckpoints(final PegTranslator original) {
+        checkpoints = original.checkpoints;
+    }
+
+    /**
+     * @return how many method translations have failed, by failure reason (such as
+     *         {@value TranslationBudget#BUDGET_EXCEEDED})
+     */
+    public Map<String, Integer> getFailureReasons() {
+        return Collections.unmodifiableMap(failureReasons);
+    }
+
+    private void recordFailure(final String reason) {
+        failureReasons.merge(reason, 1, Integer::sum);
+    }
+
     /**
      * Translate a {@code CompilationUnit} into a set of PEGs, one for each method.
      * @param cu the compilation unit to translate
@@ -55,15 +111,27 @@ public class PegTranslator {
                         .collect(Collectors.toList());
                 for (MethodDeclaration method : sortedMethods) {
                     final String methDeclStr = Util.CanonicalNames.fromDecl(method, cu, ctype);
+                    final PegGraph.Checkpoint checkpoint = graph.isConcurrent() ? null : graph.checkpoint();
 
                     try {
                         final String key = methDeclStr
                                 .substring(methDeclStr.indexOf(' ') + 1)
                                 .replaceAll("\\s+", "");
-                        result.put(key, translate(method, classVisitorResult));
+                        final List<PegContext> contexts = checkpoints == null ? null : new ArrayList<>();
+                        result.put(key, graph.underBudget(budget,
+                                () -> translateMethod(method, classVisitorResult, null, 0, contexts)));
+                        if (contexts != null) {
+                            // Two methods with the same canonical name can't be told apart later
+                            checkpoints.merge(Util.canonicalizeDeclarationName(method),
+                                    new StatementCheckpoints(method, contexts), (a, b) -> StatementCheckpoints.NONE);
+                        }
 
                     } catch (RuntimeException e) {
-                        failureReasons.put(e.getMessage(), failureReasons.getOrDefault(e.getMessage(), 0) + 1);
+                        recordFailure(e.getMessage());
+                        // Don't leave the failed translation's nodes behind in the graph
+                        if (checkpoint != null) {
+                            graph.rollback(checkpoint);
+                        }
                     }
                 }
             }
@@ -72,7 +140,28 @@ public class PegTranslator {
     }
 
     public PegNode translate(final CompilationUnit cu, final String canonical) {
-        if (canonical == null) return PegNode.unit();
+        return translate(cu, canonical, budget);
+    }
+
+    /**
+     * Translate the method of {@code cu} whose canonical name is {@code canonical}, holding it to {@code budget}
+     * @return the method's PEG, or {@code unit} if there is no such method
+     * @throws TranslationBudget.Exceeded if the translation exceeds {@code budget}
+     */
+    public PegNode translate(final CompilationUnit cu, final String canonical, final TranslationBudget budget) {
+        return translate(cu, canonical, budget, 0);
+    }
+
+    /**
+     * Translate the mutated method of mutant {@code cu} whose canonical name is {@code canonical}, as
+     * {@link #translate(CompilationUnit, String, TranslationBudget)} does. If checkpoints of the original method were
+     * recorded (see {@link #recordCheckpoints()}), translation resumes from the last one before the mutation.
+     * @param line the line the mutation is on, or 0 if it isn't known
+     */
+    public PegNode translate(final CompilationUnit cu, final String canonical, final TranslationBudget budget,
+                             final int line) {
+        if (canonical == null) return graph.unit();
+        final StatementCheckpoints recorded = checkpoints == null || line <= 0 ? null : checkpoints.get(canonical);
 
         final NodeList<TypeDeclaration<?>> types = cu.getTypes();
         types.sort(Comparator.comparing(TypeDeclaration::getNameAsString));
@@ -83,12 +172,13 @@ public class PegTranslator {
                 if (ctype.isInterface()) continue;
                 for (MethodDeclaration method : ctype.getMethods()) {
                     if (canonical.equals(Util.canonicalizeDeclarationName(method))) {
-                        return translate(method, classVisitorResult);
+                        return graph.underBudget(budget,
+                                () -> translateMethod(method, classVisitorResult, recorded, line, null));
                     }
                 }
             }
         }
-        return PegNode.unit();
+        return graph.unit();
     }
 
     /**
@@ -101,11 +191,33 @@ public class PegTranslator {
      */
     public PegNode translate(final MethodDeclaration n,
                                        final PegClassVisitor.ClassVisitorResult classVisitorResult) {
-        final PegContext initCtx = PegContext.initWithParams(
+        return translate(n, classVisitorResult, budget);
+    }
+
+    private PegNode translate(final MethodDeclaration n,
+                              final PegClassVisitor.ClassVisitorResult classVisitorResult,
+                              final TranslationBudget budget) {
+        return graph.underBudget(budget, () -> translateMethod(n, classVisitorResult, null, 0, null));
+    }
+
+    /**
+     * @param recorded if not {@code null}, the checkpoints of the method that {@code n} is a mutant of
+     * @param line the line of {@code n}'s mutation
+     * @param contexts if not {@code null}, the context before each of {@code n}'s top-level statements is added to it
+     */
+    private PegNode translateMethod(final MethodDeclaration n,
+                                    final PegClassVisitor.ClassVisitorResult classVisitorResult,
+                                    final StatementCheckpoints recorded,
+                                    final int line,
+                                    final List<PegContext> contexts) {
+        final int from = recorded == null ? 0 : recorded.resumeIndex(n, line);
+        final PegContext ctx = from > 0 ? recorded.contextBefore(from) : PegContext.initWithParams(
+                graph,
+                n,
                 classVisitorResult.getFieldNames(),
                 Util.getParameterList(n),
                 new HashMap<>());
-        final ExpressionResult result = n.accept(stmtVisitor, initCtx);
+        final ExpressionResult result = stmtVisitor.visitMethod(n, ctx, from, contexts);
         return result.context.asPeg().orElseThrow(IllegalStateException::new);
     }
 
@@ -0,0 +1,288 @@
+package serializer.peg;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * <p>An immutable map implemented as a hash array mapped trie (HAMT). Updates return a new map that shares all but
+ * the {@code O(log n)} trie nodes on the path to the updated key with the old one, so taking a snapshot of a map (for
+ * instance, before visiting each arm of a branch) is free, and updating it is cheap.</p>
+ *
+ * <p>Each trie node consumes 5 bits of a key's hash and holds, in a compact array indexed by a 32-bit bitmap, either
+ * entries or child nodes. Keys whose hashes are equal end up together in a collision node at the bottom of the
+ * trie.</p>
+ *
+ * <p>Since unchanged subtries are shared, {@link #intersect} can skip any subtrie that two maps share, which makes
+ * merging two maps that were forked from a common map proportional to the number of keys changed since the fork
+ * rather than to the size of the maps.</p>
+ *
+ * <p>Neither keys nor values may be {@code null}. Values are compared by identity.</p>
+ */
+public final class PersistentMap<K, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(Node.EMPTY);
+
+    private final Node root;
+
+    private PersistentMap(final Node root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return root.size;
+    }
+
+    public boolean isEmpty() {
+        return root.size == 0;
+    }
+
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the value {@code key} maps to, or {@code null} if it isn't mapped
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        return (V) root.get(0, key.hashCode(), key);
+    }
+
+    /**
+     * @return a map identical to this one except that {@code key} maps to {@code value}. If {@code key} already maps
+     *         to {@code value}, this is returned.
+     * @throws NullPointerException if {@code key} or {@code value} is null
+     */
+    public PersistentMap<K, V> put(final K key, final V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        final Node newRoot = root.put(0, key.hashCode(), key, value);
+        return newRoot == root ? this : new PersistentMap<>(newRoot);
+    }
+
+    /**
+     * @return the map from the keys that this map and {@code other} both map, to {@code combine} applied to this
+     *         map's value and {@code other}'s value. {@code combine} is not called on values that are identical, or
+     *         on any key in a subtrie the two maps share.
+     */
+    public PersistentMap<K, V> intersect(final PersistentMap<K, V> other, final BinaryOperator<V> combine) {
+        final Node newRoot = Node.intersect(root, other.root, 0, combine);
+        return newRoot == root ? this : newRoot == other.root ? other : new PersistentMap<>(newRoot);
+    }
+
+    /**
+     * @return {@code true} if this map and {@code other} are known to be equal without looking at their entries,
+     *         which is the case when one was derived from the other by updates that changed nothing
+     */
+    public boolean sharesRoot(final PersistentMap<K, V> other) {
+        return root == other.root;
+    }
+
+    /**
+     * Call {@code action} on each entry, in an order determined by the keys' hashes
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(final BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /**
+     * @return the keys of this map, in the order of {@link #forEach}
+     */
+    public ImmutableSet<K> keySet() {
+        final ImmutableSet.Builder<K> builder = ImmutableSet.builderWithExpectedSize(size());
+        forEach((k, v) -> builder.add(k));
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        forEach((k, v) -> sb.append(sb.length() == 1 ? "" : ", ").append(k).append('=').append(v));
+        return sb.append('}').toString();
+    }
+
+    /**
+     * <p>A trie node. A bitmap node's {@code array} holds two slots for each bit set in {@code bitmap}, in bit order:
+     * either a key and its value, or {@code null} and a child node. A collision node (whose keys all have the same
+     * hash) holds keys and values, in pairs, in no particular order.</p>
+     *
+     * <p>Nodes are never modified once they are shared.</p>
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, new Object[0], 0, false);
+
+        final int bitmap;
+        final Object[] array;
+        /**
+         * The number of entries in this subtrie
+         */
+        final int size;
+        final boolean collision;
+
+        Node(final int bitmap, final Object[] array, final int size, final boolean collision) {
+            this.bitmap = bitmap;
+            this.array = array;
+            this.size = size;
+            this.collision = collision;
+        }
+
+        private static int bit(final int shift, final int hash) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(final int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object get(final int shift, final int hash, final Object key) {
+            if (collision) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (array[i].equals(key)) return array[i + 1];
+                }
+                return null;
+            }
+            final int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) return null;
+            final int i = index(bit);
+            final Object k = array[i];
+            if (k == null) return ((Node) array[i + 1]).get(shift + BITS, hash, key);
+            return k.equals(key) ? array[i + 1] : null;
+        }
+
+        Node put(final int shift, final int hash, final Object key, final Object value) {
+            if (collision) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (array[i].equals(key)) {
+                        return array[i + 1] == value ? this : new Node(0, with(array, i + 1, value), size, true);
+                    }
+                }
+                final Object[] grown = Arrays.copyOf(array, array.length + 2);
+                grown[array.length] = key;
+                grown[array.length + 1] = value;
+                return new Node(0, grown, size + 1, true);
+            }
+            final int bit = bit(shift, hash);
+            final int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                final Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                return new Node(bitmap | bit, grown, size + 1, false);
+            }
+            final Object k = array[i], v = array[i + 1];
+            if (k == null) {
+                final Node child = (Node) v;
+                final Node newChild = child.put(shift + BITS, hash, key, value);
+                return newChild == child ? this
+                        : new Node(bitmap, with(array, i + 1, newChild), size - child.size + newChild.size, false);
+            }
+            if (k.equals(key)) {
+                return v == value ? this : new Node(bitmap, with(array, i + 1, value), size, false);
+            }
+            final Node child = pair(shift + BITS, k.hashCode(), k, v, hash, key, value);
+            final Object[] copy = with(array, i + 1, child);
+            copy[i] = null;
+            return new Node(bitmap, copy, size + 1, false);
+        }
+
+        /**
+         * @return a node holding exactly two entries, with distinct keys, below {@code shift}
+         */
+        private static Node pair(final int shift, final int hash1, final Object key1, final Object value1,
+                                 final int hash2, final Object key2, final Object value2) {
+            if (hash1 == hash2) {
+                return new Node(0, new Object[]{key1, value1, key2, value2}, 2, true);
+            }
+            final int bit1 = bit(shift, hash1), bit2 = bit(shift, hash2);
+            if (bit1 == bit2) {
+                return new Node(bit1, new Object[]{null, pair(shift + BITS, hash1, key1, value1, hash2, key2, value2)},
+                        2, false);
+            }
+            return new Node(bit1 | bit2, bit1 < bit2 ? new Object[]{key1, value1, key2, value2}
+                    : new Object[]{key2, value2, key1, value1}, 2, false);
+        }
+
+        private static Object[] with(final Object[] array, final int i, final Object value) {
+            final Object[] copy = array.clone();
+            copy[i] = value;
+            return copy;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Node intersect(final Node a, final Node b, final int shift, final BinaryOperator<V> combine) {
+            if (a == b) return a;
+            if (a.size == 0 || b.size == 0) return EMPTY;
+            if (a.collision || b.collision) {
+                // Rare: merge entry by entry
+                final Node[] result = {EMPTY};
+                a.forEach((k, v1) -> {
+                    final Object v2 = b.get(shift, k.hashCode(), k);
+                    if (v2 != null) {
+                        result[0] = result[0].put(shift, k.hashCode(), k, v1 == v2 ? v1 : combine.apply((V) v1, (V) v2));
+                    }
+                });
+                return result[0];
+            }
+            int bitmap = 0, size = 0, n = 0;
+            final Object[] array = new Object[2 * Integer.bitCount(a.bitmap & b.bitmap)];
+            boolean sameAsA = a.bitmap == (a.bitmap & b.bitmap);
+            for (int bits = a.bitmap & b.bitmap; bits != 0; bits &= bits - 1) {
+                final int bit = bits & -bits;
+                final int i = a.index(bit), j = b.index(bit);
+                final Object ka = a.array[i], va = a.array[i + 1], kb = b.array[j], vb = b.array[j + 1];
+                Object key = null, value;
+                if (ka == null && kb == null) {
+                    final Node child = intersect((Node) va, (Node) vb, shift + BITS, combine);
+                    if (child.size == 0) {
+                        sameAsA = false;
+                        continue;
+                    }
+                    value = child;
+                    size += child.size;
+                } else {
+                    // At least one side is an entry: look its key up on the other side
+                    key = ka != null ? ka : kb;
+                    final Object v1 = ka != null ? va : ((Node) va).get(shift + BITS, key.hashCode(), key);
+                    final Object v2 = kb != null ? (kb.equals(key) ? vb : null)
+                            : ((Node) vb).get(shift + BITS, key.hashCode(), key);
+                    if (v1 == null || v2 == null) {
+                        sameAsA = false;
+                        continue;
+                    }
+                    value = v1 == v2 ? v1 : combine.apply((V) v1, (V) v2);
+                    size += 1;
+                }
+                sameAsA &= key == ka && value == va;
+                bitmap |= bit;
+                array[n++] = key;
+                array[n++] = value;
+            }
+            if (sameAsA) return a;
+            return size == 0 ? EMPTY : new Node(bitmap, n == array.length ? array : Arrays.copyOf(array, n), size, false);
+        }
+
+        void forEach(final BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package serializer.peg;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.stmt.Statement;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>The contexts that a method's translation was in before each of its top-level statements. A mutant of the method
+ * that only differs from it at or after some top-level statement can be translated by resuming from the context
+ * before that statement, rather than translating the unchanged statements before it again. Since the resumed
+ * translation shares the original's nodes for those statements, including any thetas, the mutant's PEG shares them
+ * too.</p>
+ *
+ * <p>A mutant's changed statement is found from the line that its mutation is on, and every statement before it is
+ * checked to be structurally equal to the original's, so a wrong line number costs time but never correctness.</p>
+ */
+final class StatementCheckpoints {
+    /**
+     * Checkpoints that are never resumed from, for a method that can't be told apart from another with the same
+     * canonical name
+     */
+    static final StatementCheckpoints NONE = new StatementCheckpoints(null, null);
+
+    private final MethodDeclaration method;
+    /**
+     * {@code contexts.get(i)} is the context before the {@code i}th top-level statement of {@code method}'s body
+     */
+    private final List<PegContext> contexts;
+
+    StatementCheckpoints(final MethodDeclaration method, final List<PegContext> contexts) {
+        this.method = method;
+        this.contexts = contexts;
+    }
+
+    /**
+     * @param mutant a mutant of this method
+     * @param line the line the mutant's mutation is on
+     * @return the index of the top-level statement that the mutant's translation can resume from, or 0 if it must
+     *         be translated from the start
+     */
+    int resumeIndex(final MethodDeclaration mutant, final int line) {
+        if (method == null || !mutant.getBody().isPresent() || !method.getBody().isPresent()
+                || !sameDeclaration(mutant)) {
+            return 0;
+        }
+        final NodeList<Statement> original = method.getBody().get().getStatements();
+        final NodeList<Statement> mutated = mutant.getBody().get().getStatements();
+        final int limit = Math.min(contexts.size(), Math.min(original.size(), mutated.size()) - 1);
+        int resume = 0;
+        while (resume < limit && endsBefore(mutated.get(resume), line)
+                && original.get(resume).equals(mutated.get(resume))) {
+            ++resume;
+        }
+        return resume;
+    }
+
+    /**
+     * @return the context before the {@code statement}th top-level statement, with slots of its own
+     */
+    PegContext contextBefore(final int statement) {
+        return contexts.get(statement).withCopiedSlots();
+    }
+
+    private boolean sameDeclaration(final MethodDeclaration mutant) {
+        return method.getNameAsString().equals(mutant.getNameAsString())
+                && method.getParameters().equals(mutant.getParameters())
+                && declaringType(method).equals(declaringType(mutant));
+    }
+
+    private static Optional<String> declaringType(final Node node) {
+        return node.findAncestor(TypeDeclaration.class).map(type -> type.getNameAsString());
+    }
+
+    private static boolean endsBefore(final Statement statement, final int line) {
+        return statement.getEnd().map(end -> end.line < line).orElse(false);
+    }
+}
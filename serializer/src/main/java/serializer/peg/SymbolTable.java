@@ -0,0 +1,87 @@
+package serializer.peg;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Interns operator symbols to dense integer opcodes, numbered from {@code first}. A symbol is interned once; after
+ * that, converting in either direction is a single lookup. A table is append-only (except for {@link #truncate}) and
+ * safe to use from many threads.</p>
+ *
+ * <p>{@link Opcodes} keeps the fixed symbols that the serializer itself produces in a table of its own, and each
+ * {@link PegGraph} keeps the other symbols it sees, such as method, field and variable names, in a table numbered
+ * after the fixed ones.</p>
+ */
+final class SymbolTable {
+    private final int first;
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] symbols = new String[64];
+    private int count = 0;
+
+    SymbolTable(final int first) {
+        this.first = first;
+    }
+
+    /**
+     * @return the opcode for {@code symbol}, or {@code -1} if it hasn't been interned
+     */
+    int find(final String symbol) {
+        final Integer opcode = codes.get(symbol);
+        return opcode != null ? opcode : -1;
+    }
+
+    /**
+     * @return the opcode for {@code symbol}, registering it if it hasn't been seen before
+     */
+    int intern(final String symbol) {
+        final Integer opcode = codes.get(symbol);
+        return opcode != null ? opcode : register(symbol);
+    }
+
+    /**
+     * @param opcode an opcode returned by {@link #intern(String)}
+     * @return the symbol that {@code opcode} was interned from
+     */
+    String symbol(final int opcode) {
+        return symbols[opcode - first];
+    }
+
+    /**
+     * @return the number of interned symbols, whose opcodes are {@code first} through {@code first + size() - 1}
+     */
+    int size() {
+        return codes.size();
+    }
+
+    /**
+     * Forget every symbol but the first {@code size}. Their opcodes must no longer be used.
+     */
+    synchronized void truncate(final int size) {
+        final String[] syms = symbols;
+        for (int i = size; i < count; ++i) {
+            codes.remove(syms[i]);
+            syms[i] = null;
+        }
+        count = Math.min(count, size);
+        symbols = syms;
+    }
+
+    private synchronized int register(final String symbol) {
+        final Integer existing = codes.get(symbol);
+        if (existing != null) {
+            return existing;
+        }
+        String[] syms = symbols;
+        if (count == syms.length) {
+            final String[] grown = new String[2 * syms.length];
+            System.arraycopy(syms, 0, grown, 0, syms.length);
+            syms = grown;
+        }
+        final int opcode = first + count++;
+        syms[opcode - first] = symbol;
+        // Publish the symbol before the opcode can be observed through `codes`
+        symbols = syms;
+        codes.put(symbol, opcode);
+        return opcode;
+    }
+}
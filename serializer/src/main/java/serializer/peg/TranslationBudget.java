@@ -0,0 +1,119 @@
+package serializer.peg;
+
+/**
+ * <p>Limits on the resources a single method translation may use: the number of nodes it allocates and the wall-clock
+ * time it takes. A translation that exceeds its budget is aborted with an {@link Exceeded} exception, whose message is
+ * {@value #BUDGET_EXCEEDED}, so that it is recorded like any other translation failure. As with other failures, the
+ * caller is responsible for rolling back the nodes the aborted translation allocated.</p>
+ *
+ * <p>A limit of 0 means no limit. Budgets are enforced by {@link PegGraph#underBudget}.</p>
+ */
+public final class TranslationBudget {
+    /**
+     * The failure reason recorded for a translation that exceeded its budget
+     */
+    public static final String BUDGET_EXCEEDED = "BudgetExceeded";
+
+    public static final TranslationBudget UNLIMITED = new TranslationBudget(0, 0);
+
+    /**
+     * The clock is read once every this many allocations, as well as at each statement
+     */
+    private static final int CLOCK_INTERVAL = 64;
+
+    public final int maxNodes;
+    public final long maxMillis;
+
+    private TranslationBudget(final int maxNodes, final long maxMillis) {
+        this.maxNodes = maxNodes;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param maxNodes the most nodes a translation may allocate, or 0 for no limit
+     * @param maxMillis the most milliseconds a translation may take, or 0 for no limit
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public static TranslationBudget of(final int maxNodes, final long maxMillis) {
+        if (maxNodes < 0 || maxMillis < 0) {
+            throw new IllegalArgumentException("Translation budget limits must not be negative");
+        }
+        return maxNodes == 0 && maxMillis == 0 ? UNLIMITED : new TranslationBudget(maxNodes, maxMillis);
+    }
+
+    /**
+     * @param spec a budget written as {@code NODES,MILLIS}, such as {@code 100000,2000}
+     * @throws IllegalArgumentException if {@code spec} is malformed
+     */
+    public static TranslationBudget parse(final String spec) {
+        final String[] parts = spec.split(",");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected a translation budget of the form NODES,MILLIS: " + spec);
+        }
+        return of(Integer.parseInt(parts[0].trim()), Long.parseLong(parts[1].trim()));
+    }
+
+    public boolean isUnlimited() {
+        return this == UNLIMITED;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d nodes, %d ms", maxNodes, maxMillis);
+    }
+
+    /**
+     * The resources used so far by one translation
+     */
+    static final class Meter {
+        private final TranslationBudget budget;
+        private final long deadline;
+        private int nodes = 0;
+
+        Meter(final TranslationBudget budget) {
+            this.budget = budget;
+            this.deadline = System.nanoTime() + budget.maxMillis * 1_000_000;
+        }
+
+        /**
+         * Record a node allocation
+         * @throws Exceeded if this allocation goes over budget
+         */
+        void allocated() {
+            ++nodes;
+            if (budget.maxNodes != 0 && nodes > budget.maxNodes) {
+                throw new Exceeded(String.format("%d nodes", nodes));
+            }
+            if (nodes % CLOCK_INTERVAL == 0) {
+                checkClock();
+            }
+        }
+
+        /**
+         * @throws Exceeded if the translation has run out of time
+         */
+        void checkClock() {
+            if (budget.maxMillis != 0 && System.nanoTime() - deadline > 0) {
+                throw new Exceeded(String.format("%d ms", budget.maxMillis));
+            }
+        }
+    }
+
+    /**
+     * Thrown to abort a translation that has exceeded its budget
+     */
+    public static final class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * What was exceeded, for diagnostics. The message is always {@value #BUDGET_EXCEEDED}, since failure reasons
+         * are keyed by message.
+         */
+        public final String detail;
+
+        Exceeded(final String detail) {
+            super(BUDGET_EXCEEDED);
+            this.detail = detail;
+        }
+    }
+}
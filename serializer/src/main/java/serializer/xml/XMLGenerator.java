@@ -13,8 +13,11 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import serializer.peg.IdRenumbering;
 import serializer.peg.MutantsLog;
 import serializer.peg.Pair;
+import serializer.peg.PegGraph;
 import serializer.peg.PegNode;
 
 public class XMLGenerator {
@@ -129,14 +132,78 @@ public class XMLGenerator {
         final List<Integer> keys = new ArrayList<>(idTable.keySet());
         keys.sort(null);
         for (Integer id : keys) {
-            final PegNode p = idTable.get(id);
+            addDedupEntry(table, idTable.get(id));
+        }
+    }
+
+    /**
+     * Add the {@code <id_table>} element to the xml doc, reading nodes directly from {@code graph} in id order
+     * @param graph the graph whose nodes should be written
+     */
+    public void addIdTable(PegGraph graph) {
+        Element table = document.createElement("id_table");
+        subjects.appendChild(table);
+        final int size = graph.size();
+        for (int id = 0; id < size; ++id) {
+            graph.idLookup(id).ifPresent(p -> addDedupEntry(table, p));
+        }
+    }
+
+    /**
+     * Add the {@code <id_table>} element to the xml doc, containing only the nodes in {@code ids} and numbered as
+     * {@code ids} dictates. Subject and mutant pids should be renumbered with {@link #renumberPegIds}.
+     * @param ids the renumbering of the nodes to be written
+     */
+    public void addIdTable(IdRenumbering ids) {
+        Element table = document.createElement("id_table");
+        subjects.appendChild(table);
+        for (PegNode p : ids.nodes()) {
             Element dedupEntry = document.createElement("dedup_entry");
             table.appendChild(dedupEntry);
-            dedupEntry.setAttribute("id", id.toString());
-            dedupEntry.setAttribute("peg", p.toString());
+            dedupEntry.setAttribute("id", Integer.toString(ids.get(p.id)));
+            dedupEntry.setAttribute("peg", ids.toString(p));
         }
     }
 
+    /**
+     * @return the peg ids of every subject and mutant added so far
+     */
+    public List<Integer> getPegIds() {
+        final List<Integer> pids = new ArrayList<>();
+        final NodeList subjectPids = subjects.getElementsByTagName("pid");
+        for (int i = 0; i < subjectPids.getLength(); ++i) {
+            pids.add(Integer.parseInt(subjectPids.item(i).getTextContent()));
+        }
+        final NodeList mutants = subjects.getElementsByTagName("mutant");
+        for (int i = 0; i < mutants.getLength(); ++i) {
+            pids.add(Integer.parseInt(((Element) mutants.item(i)).getAttribute("pid")));
+        }
+        return pids;
+    }
+
+    /**
+     * Rewrite the peg ids of every subject and mutant added so far according to {@code ids}
+     */
+    public void renumberPegIds(IdRenumbering ids) {
+        final NodeList subjectPids = subjects.getElementsByTagName("pid");
+        for (int i = 0; i < subjectPids.getLength(); ++i) {
+            final int pid = Integer.parseInt(subjectPids.item(i).getTextContent());
+            subjectPids.item(i).setTextContent(Integer.toString(ids.get(pid)));
+        }
+        final NodeList mutants = subjects.getElementsByTagName("mutant");
+        for (int i = 0; i < mutants.getLength(); ++i) {
+            final Element mutant = (Element) mutants.item(i);
+            mutant.setAttribute("pid", Integer.toString(ids.get(Integer.parseInt(mutant.getAttribute("pid")))));
+        }
+    }
+
+    private void addDedupEntry(Element table, PegNode p) {
+        Element dedupEntry = document.createElement("dedup_entry");
+        table.appendChild(dedupEntry);
+        dedupEntry.setAttribute("id", Integer.toString(p.id));
+        dedupEntry.setAttribute("peg", p.toString());
+    }
+
     /**
      * Add a list of equivalences to the xml doc
      * @param equivs a list of ids to be marked as equivalent
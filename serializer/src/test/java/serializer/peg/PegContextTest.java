@@ -0,0 +1,89 @@
+package serializer.peg;
+
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PegContextTest {
+  @Test
+  public void testLocalSlots() {
+    final MethodDeclaration method = StaticJavaParser.parseMethodDeclaration(
+        "int f(int a) { int b = a; if (a > 0) { int x = b; } return x; }");
+    final Set<String> fields = new HashSet<>(Collections.singletonList("x"));
+    final PegGraph graph = new PegGraph();
+    final PegContext ctx = PegContext.initWithParams(graph, method, fields, Arrays.asList("this", "a"),
+        new HashMap<>());
+
+    // Parameters come first, then locals in declaration order, then fields
+    assertEquals(0, ctx.slots.find("this"));
+    assertEquals(1, ctx.slots.find("a"));
+    assertEquals(2, ctx.slots.find("b"));
+    assertEquals(3, ctx.slots.find("x"));
+    assertTrue(ctx.slots.isField(3));
+    assertEquals(-1, ctx.slots.find("y"));
+
+    assertEquals(new HashSet<>(Arrays.asList("this", "a")), ctx.getLocalNames());
+    assertTrue(ctx.isUnshadowedField("x"));
+    assertEquals(graph.unit(), ctx.getLocalVar("b"));
+
+    final PegNode one = graph.intLit(1);
+    final PegContext shadowed = ctx.setLocalVar("x", one).setLocalVar("y", one);
+    assertFalse(shadowed.isUnshadowedField("x"));
+    assertTrue(shadowed.isLocalVar("y"));
+    assertSame(one, shadowed.getLocalVar("x"));
+    assertEquals(4, ctx.slots.find("y"));
+    assertSame(shadowed, shadowed.setLocalVar("x", one));
+    // The original context is unchanged
+    assertTrue(ctx.isUnshadowedField("x"));
+    assertFalse(ctx.isLocalVar("y"));
+  }
+
+  @Test
+  public void testExitConditions() {
+    final PegGraph graph = new PegGraph();
+    final List<PegNode> conditions = new ArrayList<>();
+    for (int i = 0; i < 6; ++i) {
+      conditions.add(graph.var("c" + i, graph.nil().id));
+    }
+    ExitConditions exits = ExitConditions.none();
+    assertTrue(exits.isEmpty());
+    for (int i = 0; i < 4; ++i) {
+      exits = exits.with(conditions.get(i));
+    }
+    assertSame(exits, exits.with(conditions.get(2)));
+    final PegNode disjunction = exits.disjunction(graph);
+    assertSame(graph.exitConditions(conditions.subList(0, 4)), disjunction);
+
+    // One more condition costs one more node
+    final int size = graph.size();
+    final ExitConditions more = exits.with(conditions.get(5));
+    assertSame(graph.exitConditions(Arrays.asList(conditions.get(5), disjunction)), more.disjunction(graph));
+    assertEquals(size + 1, graph.size());
+
+    // Out of order conditions and unions are rebuilt
+    final ExitConditions outOfOrder = ExitConditions.none().with(conditions.get(4)).with(conditions.get(1));
+    assertSame(graph.exitConditions(Arrays.asList(conditions.get(1), conditions.get(4))),
+        outOfOrder.disjunction(graph));
+    final ExitConditions union = more.union(outOfOrder);
+    assertEquals(6, union.size());
+    assertSame(graph.exitConditions(conditions), union.disjunction(graph));
+    assertSame(more, more.union(exits));
+
+    // A true condition makes the disjunction true
+    assertSame(graph.boolLit(true), exits.with(graph.boolLit(true)).disjunction(graph));
+
+    // A disjunction discarded by a rollback is rebuilt
+    final ExitConditions withD = exits.with(graph.var("d", graph.nil().id));
+    final PegGraph.Checkpoint checkpoint = graph.checkpoint();
+    final PegNode discarded = withD.disjunction(graph);
+    graph.rollback(checkpoint);
+    assertFalse(graph.idLookup(discarded.id).isPresent());
+    final PegNode rebuilt = withD.disjunction(graph);
+    assertSame(rebuilt, graph.get(rebuilt.id));
+    assertEquals(disjunction.id, rebuilt.child(0));
+  }
+}
@@ -0,0 +1,589 @@
+package serializer.peg;
+
+import com.github.javaparser.StaticJavaParser;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PegGraphTest {
+
+  @Test
+  public void testHashConsing() {
+    final PegGraph graph = new PegGraph();
+    final PegNode one = graph.intLit(1);
+    final PegNode a = graph.opNode("a");
+    final PegNode plus = graph.opNode(PegOp.PLUS, one.id, a.id);
+    assertSame(one, graph.intLit(1));
+    assertSame(plus, graph.opNode(PegOp.PLUS, one.id, a.id));
+    assertSame(plus, graph.idLookup(plus.id).orElse(null));
+    assertEquals(3, graph.size());
+  }
+
+  @Test
+  public void testSimplifyingConstructors() {
+    final PegGraph graph = new PegGraph();
+    final PegNode tru = graph.boolLit(true);
+    final PegNode fls = graph.boolLit(false);
+    final PegNode x = graph.var("x", graph.nil().id);
+    final PegNode y = graph.var("y", graph.nil().id);
+    final PegNode unit = graph.unit();
+    final int size = graph.size();
+
+    assertSame(x, graph.simplePhi(y.id, x.id, x.id));
+    assertSame(x, graph.simplePhi(tru.id, x.id, y.id));
+    assertSame(y, graph.simplePhi(fls.id, x.id, y.id));
+    assertSame(x, graph.not(graph.not(x.id).id));
+    assertSame(fls, graph.not(tru.id));
+    assertSame(x, graph.or(x.id, fls.id));
+    assertSame(tru, graph.or(tru.id, x.id));
+    assertSame(x, graph.and(tru.id, x.id));
+    assertSame(tru, graph.isunit(unit.id));
+    assertSame(x, graph.exitConditions(Arrays.asList(fls, x)));
+    assertEquals(size + 1, graph.size());   // only (! x) was created
+
+    final PegNode.Heap heap = graph.initialHeap();
+    final PegNode.Heap written = heap.withState(x.id);
+    assertSame(heap, heap.withStatus(heap.status));
+    assertSame(heap, graph.simplePhi(y.id, heap, heap));
+    final PegNode.Heap merged = graph.simplePhi(y.id, written, heap);
+    assertEquals(heap.status, merged.status);
+    assertTrue(graph.get(merged.state).isPhiNode());
+
+    // The raw constructor never simplifies
+    assertTrue(graph.phi(fls.id, x.id, x.id).isPhiNode());
+
+    // Checking for unit in a graph that doesn't have it yet doesn't create it
+    final PegGraph fresh = new PegGraph();
+    final PegNode z = fresh.opNode("z");
+    assertEquals(Opcodes.ISUNIT, fresh.isunit(z.id).asOpNode().get().opcode);
+    assertEquals(2, fresh.size());
+  }
+
+  @Test
+  public void testCanonicalOperandOrder() {
+    final PegGraph graph = new PegGraph();
+    final PegNode a = graph.var("a", graph.nil().id);
+    final PegNode b = graph.var("b", graph.nil().id);
+    assertSame(graph.opNode(PegOp.TIMES, a.id, b.id), graph.opNode(PegOp.TIMES, b.id, a.id));
+    assertSame(graph.opNode(PegOp.EQ, b.id, a.id), graph.opNode(PegOp.EQ, a.id, b.id));
+    assertSame(graph.opNode(PegOp.LT, b.id, a.id), graph.opNode(PegOp.GT, a.id, b.id));
+    assertSame(graph.opNode(PegOp.LE, a.id, b.id), graph.opNode(PegOp.GE, b.id, a.id));
+    assertNotSame(graph.opNode(PegOp.MINUS, a.id, b.id), graph.opNode(PegOp.MINUS, b.id, a.id));
+    assertNotSame(graph.opNode(PegOp.LT, a.id, b.id), graph.opNode(PegOp.LT, b.id, a.id));
+
+    final PegNode s = graph.stringLit("s");
+    assertNotSame(graph.opNode(PegOp.PLUS, s.id, a.id), graph.opNode(PegOp.PLUS, a.id, s.id));
+
+    // + of operands of unknown type may be string concatenation, so it isn't reordered, even when nested
+    final PegNode t = graph.var("t", graph.nil().id);
+    final PegNode st = graph.opNode(PegOp.PLUS, t.id, a.id);
+    assertNotSame(st, graph.opNode(PegOp.PLUS, a.id, t.id));
+    assertEquals(t.id, st.child(0));
+    final PegNode nested = graph.opNode(PegOp.PLUS, st.id, b.id);
+    assertNotSame(nested, graph.opNode(PegOp.PLUS, b.id, st.id));
+    // ...but it is when both operands are numbers
+    final PegNode aTimesB = graph.opNode(PegOp.TIMES, a.id, b.id);
+    final PegNode aMinusB = graph.opNode(PegOp.MINUS, a.id, b.id);
+    assertSame(graph.opNode(PegOp.PLUS, aMinusB.id, aTimesB.id), graph.opNode(PegOp.PLUS, aTimesB.id, aMinusB.id));
+  }
+
+  @Test
+  public void testConstantFolding() {
+    final PegGraph graph = new PegGraph();
+    final PegNode x = graph.var("x", graph.nil().id);
+    assertSame(graph.intLit(Integer.MIN_VALUE), graph.opNode(PegOp.PLUS, graph.intLit(Integer.MAX_VALUE).id, graph.intLit(1).id));
+    assertSame(graph.intLit(Integer.MIN_VALUE), graph.opNode(PegOp.DIVIDE, graph.intLit(Integer.MIN_VALUE).id, graph.intLit(-1).id));
+    assertSame(graph.intLit(-2), graph.opNode(PegOp.DIVIDE, graph.intLit(-7).id, graph.intLit(3).id));
+    assertSame(graph.intLit(-1), graph.opNode(PegOp.REMAINDER, graph.intLit(-7).id, graph.intLit(3).id));
+    assertSame(graph.intLit(2), graph.opNode(PegOp.LSHIFT, graph.intLit(1).id, graph.intLit(33).id));
+    assertSame(graph.intLit(2), graph.opNode(PegOp.LSHIFT, graph.intLit(1).id, graph.longLit(33).id));
+    assertSame(graph.longLit(1L << 33), graph.opNode(PegOp.LSHIFT, graph.longLit(1).id, graph.intLit(33).id));
+    assertSame(graph.intLit(0x7fffffff), graph.opNode(PegOp.URSHIFT, graph.intLit(-1).id, graph.intLit(1).id));
+    assertSame(graph.longLit(3), graph.opNode(PegOp.PLUS, graph.intLit(1).id, graph.longLit(2).id));
+    assertSame(graph.boolLit(true), graph.opNode(PegOp.GT, graph.longLit(3).id, graph.intLit(2).id));
+    assertSame(graph.boolLit(false), graph.opNode(PegOp.XOR, graph.boolLit(true).id, graph.boolLit(true).id));
+    assertSame(graph.intLit(-6), graph.opNode(PegOp.NEG, graph.intLit(5).id));
+    assertSame(graph.longLit(Long.MIN_VALUE), graph.opNode(PegOp.UMINUS, graph.longLit(Long.MIN_VALUE).id));
+    assertSame(graph.boolLit(false), graph.opNode(PegOp.NOT, graph.boolLit(true).id));
+
+    // Division by zero throws, and operands that aren't both literals can't be folded
+    assertTrue(graph.opNode(PegOp.DIVIDE, graph.intLit(1).id, graph.intLit(0).id).isOpNode());
+    assertTrue(graph.opNode(PegOp.PLUS, x.id, graph.intLit(1).id).isOpNode());
+    assertTrue(graph.opNode(PegOp.PLUS, graph.boolLit(true).id, graph.intLit(1).id).isOpNode());
+  }
+
+  @Test
+  public void testOptimizer() {
+    final PegGraph graph = new PegGraph();
+    final PegNode x = graph.var("x", graph.nil().id);
+    // An invariant loop variable, i = 1; and a counter, n = 0, incremented each iteration
+    final PegNode.ThetaNode i = graph.theta(graph.intLit(1).id);
+    i.setContinuation(i.id);
+    final PegNode.ThetaNode n = graph.theta(graph.intLit(0).id);
+    n.setContinuation(graph.opNode(PegOp.PLUS, n.id, graph.intLit(1).id).id);
+    // (phi (== i 1) (+ x n) x), which only simplifies once i is known to be 1
+    final PegNode guard = graph.opNode(PegOp.EQ, i.id, graph.intLit(1).id);
+    final PegNode peg = graph.phi(guard.id, graph.opNode(PegOp.PLUS, x.id, n.id).id, x.id);
+
+    final PegOptimizer optimizer = new PegOptimizer(new PegGraph());
+    final PegNode optimized = optimizer.optimize(peg);
+    assertNotSame(graph, optimized.graph);
+    assertEquals("(+ (var (x) (nil)) (theta 0 (blank 0)))", optimized.toDerefString());
+    assertEquals(1, optimized.graph.getNodeEquivalences().size());
+    assertSame(optimized, optimizer.optimize(peg));
+  }
+
+  @Test
+  public void testCheckpointRollback() {
+    final PegGraph graph = new PegGraph();
+    final PegNode.ThetaNode outer = graph.theta(graph.intLit(0).id);
+    final PegNode one = graph.intLit(1);
+    final PegGraph.Checkpoint checkpoint = graph.checkpoint();
+    final int size = graph.size();
+
+    // A translation that creates nodes of every kind, then fails
+    final PegNode.ThetaNode inner = graph.theta(graph.longLit(2).id);
+    final PegNode plus = graph.opNode(PegOp.PLUS, outer.id, one.id);
+    for (int i = 0; i < 200; ++i) {
+      graph.opNode(PegOp.TIMES, plus.id, graph.intLit(i).id);
+    }
+    graph.stringLit("s");
+    graph.boolLit(true);
+    outer.setContinuation(plus.id);
+    inner.setContinuation(inner.init);
+    graph.rollback(checkpoint);
+
+    assertEquals(size, graph.size());
+    assertEquals(size, graph.getIdLookup().size());
+    assertTrue(graph.getNodeEquivalences().isEmpty());
+    assertFalse(outer.getContinuation().isPresent());
+    assertSame(one, graph.intLit(1));
+
+    // Ids are reused, and rebuilt nodes are interned again
+    final PegNode plus2 = graph.opNode(PegOp.PLUS, outer.id, one.id);
+    assertEquals(size, plus2.id);
+    assertSame(plus2, graph.opNode(PegOp.PLUS, outer.id, one.id));
+    assertEquals(size + 1, graph.boolLit(true).id);
+    outer.setContinuation(plus2.id);
+    assertEquals(1, graph.getNodeEquivalences().size());
+  }
+
+  @Test
+  public void testStoreForwarding() {
+    final PegGraph graph = new PegGraph();
+    final PegNode self = graph.var("this", graph.nil().id);
+    final PegNode x = graph.path(self.id, "x");
+    final PegNode y = graph.path(self.id, "y");
+    final PegNode one = graph.intLit(1);
+    final PegNode two = graph.intLit(2);
+    final PegNode.Heap heap = graph.initialHeap();
+
+    final PegNode.Heap written = graph.wrHeap(x.id, one.id, heap);
+    assertSame(one, graph.rd(x.id, written.id));
+    assertEquals(Opcodes.RD, ((PegNode.OpNode) graph.rd(y.id, written.id)).opcode);
+
+    // The second write to x replaces the first, even if the status changed in between
+    final PegNode.Heap overwritten = graph.wrHeap(x.id, two.id, written.withStatus(one.id));
+    assertSame(graph.wr(x.id, two.id, heap.id), graph.get(overwritten.state));
+    assertSame(two, graph.rd(x.id, overwritten.id));
+
+    // A write to another field in between keeps both
+    final PegNode.Heap other = graph.wrHeap(y.id, two.id, written);
+    assertEquals(other.id, graph.get(graph.wrHeap(x.id, two.id, other).state).child(2));
+
+    // Nothing is forwarded through a path of more than one field
+    final PegNode xy = graph.path(self.id, "x.y");
+    final PegNode.Heap deep = graph.wrHeap(xy.id, one.id, heap);
+    assertNotSame(one, graph.rd(xy.id, deep.id));
+  }
+
+  @Test
+  public void testGuardedExceptions() {
+    final PegGraph graph = new PegGraph();
+    final PegNode npe = graph.exception("java.lang.NullPointerException");
+    final List<PegNode> conditions = new ArrayList<>();
+    for (int i = 0; i < 50; ++i) {
+      conditions.add(graph.isnull(graph.var("x" + i, graph.nil().id).id));
+    }
+
+    // From a unit status, each exception adds one guarded phi on top of the last
+    int status = graph.unit().id;
+    status = graph.guardedException(status, conditions.get(0), npe);
+    assertSame(graph.simplePhi(conditions.get(0).id, npe.id, graph.unit().id), graph.get(status));
+    for (int i = 1; i < conditions.size(); ++i) {
+      final int next = graph.guardedException(status, conditions.get(i), npe);
+      final PegNode phi = graph.get(next);
+      assertTrue(phi.isPhiNode());
+      assertEquals(status, phi.child(2));
+      status = next;
+    }
+    assertTrue(graph.get(status).depth() < 4 * conditions.size());
+
+    // A status the graph didn't build is checked for unit once, around a chain of its own
+    final PegNode base = graph.var("status", graph.nil().id);
+    final int s1 = graph.guardedException(base.id, conditions.get(0), npe);
+    final int s2 = graph.guardedException(s1, conditions.get(1), npe);
+    final PegNode isunit = graph.isunit(base.id);
+    assertEquals(isunit.id, graph.get(s1).child(0));
+    assertEquals(isunit.id, graph.get(s2).child(0));
+    assertEquals(base.id, graph.get(s2).child(2));
+    assertEquals(graph.get(s1).child(1), graph.get(graph.get(s2).child(1)).child(2));
+  }
+
+  @Test
+  public void testTranslationBudget() {
+    final PegGraph graph = new PegGraph();
+    final PegNode x = graph.opNode("x");
+    final TranslationBudget budget = TranslationBudget.of(10, 0);
+    final PegNode sum = graph.underBudget(budget, () -> graph.opNode(PegOp.PLUS, x.id, graph.intLit(1).id));
+    assertEquals(x.id, sum.child(0));
+    try {
+      graph.underBudget(budget, () -> {
+        for (int i = 0; i < 100; ++i) graph.intLit(i);
+        return null;
+      });
+      fail("Expected the budget to be exceeded");
+    } catch (TranslationBudget.Exceeded e) {
+      assertEquals(TranslationBudget.BUDGET_EXCEEDED, e.getMessage());
+    }
+    // The budget only applies inside underBudget
+    for (int i = 0; i < 100; ++i) graph.intLit(i);
+
+    // A method that goes over budget is recorded as a failure and its nodes are rolled back
+    final PegTranslator translator = new PegTranslator();
+    translator.setBudget(TranslationBudget.of(10, 0));
+    final int size = translator.graph.size();
+    final Map<String, PegNode> translated = translator.translate(StaticJavaParser.parse(
+        "class A { int f(int a) { int b = a + 1; b = b * 2; b = b - 3; b = b / 4; b = b % 5; return b << 6; } }"));
+    assertTrue(translated.isEmpty());
+    assertEquals(Integer.valueOf(1), translator.getFailureReasons().get(TranslationBudget.BUDGET_EXCEEDED));
+    assertEquals(size, translator.graph.size());
+    translator.setBudget(TranslationBudget.UNLIMITED);
+    assertEquals(1, translator.translate(StaticJavaParser.parse("class A { int f(int a) { return a + 1; } }")).size());
+  }
+
+  @Test
+  public void testIdRenumbering() {
+    final PegGraph graph = new PegGraph();
+    graph.stringLit("garbage");
+    final PegNode.ThetaNode theta = graph.theta(graph.intLit(0).id);
+    graph.opNode(PegOp.TIMES, theta.id, theta.id);
+    final PegNode plus = graph.opNode(PegOp.PLUS, theta.id, graph.intLit(1).id);
+    theta.setContinuation(plus.id);
+    final PegNode root = graph.opNode(PegOp.NOT, theta.id);
+
+    final IdRenumbering ids = IdRenumbering.reachable(graph, Collections.singletonList(root.id));
+    // Reachable: 0 (the initializer and the blank's id), blank, theta, 1, plus (through the continuation) and root
+    assertEquals(6, ids.size());
+    assertFalse(ids.contains(0));
+    assertEquals(0, ids.get(graph.intLit(0).id));
+    assertEquals(ids.size() - 1, ids.get(root.id));
+    assertEquals("(! " + ids.get(theta.id) + ")", ids.toString(root));
+
+    int prev = -1;
+    for (PegNode node : ids.nodes()) {
+      assertTrue(ids.get(node.id) > prev);
+      prev = ids.get(node.id);
+      for (Integer child : node.children()) {
+        assertTrue(ids.get(child) < ids.get(node.id));
+      }
+    }
+    final List<Pair<Integer, Integer>> equivs = ids.renumber(graph.getNodeEquivalences());
+    assertEquals(1, equivs.size());
+    assertEquals(ids.get(plus.id), equivs.get(0).snd.intValue());
+  }
+
+  @Test
+  public void testSharedPrinter() {
+    final PegGraph graph = new PegGraph();
+    final PegNode x = graph.opNode(PegOp.PLUS, graph.intLit(1).id, graph.opNode("a").id);
+    assertEquals(x.toDerefString(), PegPrinter.toSharedString(x));
+
+    // Doubling 64 times: toDerefString would print 2^64 copies of x
+    PegNode acc = x;
+    for (int i = 0; i < 64; ++i) {
+      acc = graph.opNode(PegOp.TIMES, acc.id, acc.id);
+    }
+    final String shared = PegPrinter.toSharedString(acc);
+    assertTrue(shared.length() < 64 * 32);
+    assertTrue(shared.startsWith("(let ((%" + x.id + " " + x.toDerefString() + ")\n"));
+    assertTrue(shared.endsWith("\n  (* %" + (acc.id - 1) + " %" + (acc.id - 1) + "))"));
+
+    final PegNode.ThetaNode theta = graph.theta(graph.intLit(0).id);
+    final PegNode next = graph.opNode(PegOp.PLUS, theta.id, graph.intLit(1).id);
+    theta.setContinuation(next.id);
+    assertEquals(String.format("(let ((%%%d (theta 0 (blank 0))))\n  (! %%%d)\n  (<=> %%%d (+ %%%d 1)))",
+            theta.id, theta.id, theta.id, theta.id),
+        PegPrinter.toSharedString(graph.opNode(PegOp.NOT, theta.id)));
+  }
+
+  @Test
+  public void testLiterals() {
+    final PegGraph graph = new PegGraph();
+    for (int i = -1000; i < 1000; ++i) {
+      graph.intLit(i * 7919);
+    }
+    assertEquals(-7919, graph.intLit(-7919).asInteger().orElse(null).intValue());
+    assertSame(graph.intLit(Integer.MIN_VALUE), graph.intLit(Integer.MIN_VALUE));
+    assertSame(graph.longLit(1L << 40), graph.longLit(1L << 40));
+    assertSame(graph.boolLit(true), graph.boolLit(true));
+    assertSame(graph.stringLit("s"), graph.stringLit("s"));
+
+    // Literals of different types never share a node
+    assertNotSame(graph.intLit(1), graph.longLit(1));
+    assertNotSame(graph.intLit(0), graph.boolLit(false));
+    assertNotEquals(graph.intLit(1), graph.longLit(1));
+  }
+
+  @Test
+  public void testOpcodes() {
+    final PegGraph graph = new PegGraph();
+    assertEquals(Opcodes.PLUS, graph.intern(PegOp.PLUS));
+    assertEquals("rd", graph.symbol(Opcodes.RD));
+    final int opcode = graph.intern("someMethod");
+    assertEquals(opcode, graph.intern("someMethod"));
+    assertEquals("someMethod", graph.symbol(opcode));
+
+    // Names are interned per graph, and never become fixed opcodes
+    assertTrue(opcode >= Opcodes.size());
+    assertEquals(-1, Opcodes.find("someMethod"));
+
+    // Symbols and opcodes name the same nodes
+    final PegNode x = graph.opNode("someMethod");
+    assertSame(x, graph.opNode(opcode));
+    final PegNode.OpNode rd = graph.rd(x.id, graph.initialHeap().id).asOpNode().orElse(null);
+    assertNotNull(rd);
+    assertEquals(Opcodes.RD, rd.opcode);
+    assertSame(rd, graph.opNode("rd", x.id, graph.initialHeap().id));
+
+    // A name's opcode differs between graphs, but its fingerprint doesn't
+    final PegGraph other = new PegGraph();
+    other.opNode("otherMethod");
+    final PegNode otherX = other.opNode("someMethod");
+    assertNotEquals(opcode, otherX.asOpNode().get().opcode);
+    assertEquals(x.fingerprint(), otherX.fingerprint());
+
+    // Names first seen after a checkpoint are forgotten by a rollback
+    final PegGraph.Checkpoint checkpoint = graph.checkpoint();
+    final int later = graph.intern("laterMethod");
+    graph.opNode(later);
+    graph.rollback(checkpoint);
+    assertEquals(later, graph.intern("anotherMethod"));
+    assertEquals("anotherMethod", graph.opNode("anotherMethod").asOpNode().get().op());
+  }
+
+  @Test
+  public void testIdLookupView() {
+    final PegGraph graph = new PegGraph();
+    final Map<Integer, PegNode> idTable = graph.getIdLookup();
+    assertTrue(idTable.isEmpty());
+    final PegNode one = graph.intLit(1);
+    final PegNode two = graph.intLit(2);
+    final PegNode plus = graph.opNode(PegOp.PLUS, one.id, two.id);
+
+    // The view is backed by the graph and iterates in id order
+    assertEquals(Arrays.asList(one, two, plus), new ArrayList<>(idTable.values()));
+    assertSame(plus, idTable.get(plus.id));
+    assertNull(idTable.get(plus.id + 1));
+    try {
+      idTable.put(5, one);
+      fail("id table view should be read-only");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testGraphsAreIndependent() {
+    final PegGraph g1 = new PegGraph();
+    final PegGraph g2 = new PegGraph();
+    final PegNode x1 = g1.var("x", g1.nil().id);
+    final PegNode y2 = g2.var("y", g2.nil().id);
+
+    // Both graphs allocate ids from 0, and neither sees the other's nodes
+    assertEquals(x1.id, y2.id);
+    assertEquals("(var 1 0)", x1.toString());
+    assertEquals("(var (x) (nil))", x1.toDerefString());
+    assertEquals("(var (y) (nil))", y2.toDerefString());
+    assertSame(g1, x1.graph);
+    assertSame(g2, y2.graph);
+  }
+
+  @Test
+  public void testThetaEquivalences() {
+    final PegGraph graph = new PegGraph();
+    final PegNode.ThetaNode theta = graph.theta(graph.intLit(0).id);
+    final PegNode plus = graph.opNode(PegOp.PLUS, theta.id, graph.intLit(1).id);
+    theta.setContinuation(plus.id);
+    assertEquals(1, graph.getNodeEquivalences().size());
+    assertEquals(plus, theta.getContinuation().orElse(null));
+    assertTrue(new PegGraph().getNodeEquivalences().isEmpty());
+  }
+
+  @Test
+  public void testEquivalenceClasses() {
+    final Equivalences equivalences = new Equivalences();
+    equivalences.addEquivalence(7, 3);
+    equivalences.addEquivalence(10, 12);
+    equivalences.addEquivalence(12, 3);
+    equivalences.addEquivalence(5, 1);
+    assertTrue(equivalences.areEquivalent(7, 10));
+    assertTrue(equivalences.areEquivalent(4, 4));
+    assertFalse(equivalences.areEquivalent(1, 3));
+    assertFalse(equivalences.areEquivalent(100, 3));
+    final List<int[]> classes = equivalences.getClasses();
+    assertEquals(2, classes.size());
+    assertArrayEquals(new int[]{1, 5}, classes.get(0));
+    assertArrayEquals(new int[]{3, 7, 10, 12}, classes.get(1));
+
+    // Truncating splits classes again
+    assertEquals(2, equivalences.truncate(2).size());
+    assertFalse(equivalences.areEquivalent(7, 10));
+    assertFalse(equivalences.areEquivalent(1, 5));
+    assertEquals(2, equivalences.getClasses().size());
+  }
+
+  /**
+   * Build {@code (+ i j)} for two nested loops, {@code i = 0; i += j} and {@code j = 1; j *= k}, as a translation of
+   * one method would
+   */
+  private static PegNode nestedLoops(final PegGraph graph, final int k) {
+    final PegNode.ThetaNode i = graph.theta(graph.intLit(0).id);
+    final PegNode.ThetaNode j = graph.theta(graph.intLit(1).id);
+    i.setContinuation(graph.opNode(PegOp.PLUS, i.id, j.id).id);
+    j.setContinuation(graph.opNode(PegOp.TIMES, j.id, graph.intLit(k).id).id);
+    return graph.opNode(PegOp.MINUS, i.id, j.id);
+  }
+
+  @Test
+  public void testFingerprints() {
+    // Literals are created up front so that the operands of (* j k) are ordered the same way in every translation
+    final PegGraph graph = new PegGraph();
+    graph.intLit(2);
+    graph.intLit(3);
+    final PegNode a = nestedLoops(graph, 2);
+    final PegNode b = nestedLoops(graph, 3);
+    final PegNode c = nestedLoops(graph, 2);
+    final PegNode acyclic = graph.opNode(PegOp.MINUS, graph.intLit(0).id, graph.var("x", graph.nil().id).id);
+    assertNotEquals(a.id, c.id);
+
+    final PegFingerprints fingerprints = new PegFingerprints(graph);
+    assertEquals(fingerprints.fingerprint(a.id), fingerprints.fingerprint(c.id));
+    assertNotEquals(fingerprints.fingerprint(a.id), fingerprints.fingerprint(b.id));
+    assertTrue(graph.isStructuralBijection(a.id, c.id));
+    assertFalse(graph.isStructuralBijection(a.id, b.id));
+
+    // A PEG in another graph, with different theta and blank ids, has the same fingerprint
+    final PegGraph other = new PegGraph();
+    other.intLit(2);
+    other.theta(other.intLit(7).id);
+    assertEquals(fingerprints.fingerprint(a.id), new PegFingerprints(other).fingerprint(nestedLoops(other, 2).id));
+
+    assertEquals(acyclic.fingerprint(), fingerprints.fingerprint(acyclic.id));
+  }
+
+  /**
+   * Build thetas for a loop that swaps {@code a = 0} and {@code b = 1} and increments one of them, as a translation of
+   * {@code t = a; a = b + 1; b = t} would, so that both thetas are on the same cycle
+   * @return the thetas, {@code a} and then {@code b}
+   */
+  private static PegNode.ThetaNode[] swappingLoop(final PegGraph graph) {
+    final PegNode.ThetaNode a = graph.theta(graph.intLit(0).id);
+    final PegNode.ThetaNode b = graph.theta(graph.intLit(1).id);
+    a.setContinuation(graph.opNode(PegOp.PLUS, b.id, graph.intLit(1).id).id);
+    b.setContinuation(a.id);
+    return new PegNode.ThetaNode[]{a, b};
+  }
+
+  @Test
+  public void testFingerprintsOfOneCycle() {
+    // Fingerprinting a cycle from either of its members gives each member the same fingerprint
+    final PegGraph graph = new PegGraph();
+    final PegNode.ThetaNode[] thetas = swappingLoop(graph);
+    final PegFingerprints fingerprints = new PegFingerprints(graph);
+    final long a = fingerprints.fingerprint(thetas[0].id);
+    final long b = fingerprints.fingerprint(thetas[1].id);
+    assertNotEquals(a, b);
+
+    final PegGraph other = new PegGraph();
+    other.intLit(1);
+    final PegNode.ThetaNode[] otherThetas = swappingLoop(other);
+    final PegFingerprints otherFingerprints = new PegFingerprints(other);
+    assertEquals(b, otherFingerprints.fingerprint(otherThetas[1].id));
+    assertEquals(a, otherFingerprints.fingerprint(otherThetas[0].id));
+
+    // A loop whose thetas have the same initializer still tells them apart
+    final PegNode.ThetaNode i = graph.theta(graph.intLit(0).id);
+    final PegNode.ThetaNode j = graph.theta(graph.intLit(0).id);
+    i.setContinuation(graph.opNode(PegOp.PLUS, j.id, graph.intLit(1).id).id);
+    j.setContinuation(i.id);
+    assertNotEquals(fingerprints.fingerprint(i.id), fingerprints.fingerprint(j.id));
+  }
+
+  @Test
+  public void testNodeMetadata() {
+    final PegGraph graph = new PegGraph();
+    final PegNode x = graph.opNode("x");
+    final PegNode one = graph.intLit(1);
+    final PegNode difference = graph.opNode(PegOp.MINUS, x.id, one.id);
+    final PegNode square = graph.opNode(PegOp.TIMES, difference.id, difference.id);
+    assertEquals(1, one.treeSize());
+    assertEquals(0, one.depth());
+    assertEquals(3, difference.treeSize());
+    assertEquals(7, square.treeSize());
+    assertEquals(2, square.depth());
+    assertEquals(0, square.thetaCount());
+
+    // Fingerprints don't depend on ids, so the same PEG built in another order in another graph has the same one
+    final PegGraph other = new PegGraph();
+    final PegNode otherOne = other.intLit(1);
+    other.intLit(2);
+    final PegNode otherDifference = other.opNode(PegOp.MINUS, other.opNode("x").id, otherOne.id);
+    assertEquals(difference.fingerprint(), otherDifference.fingerprint());
+    assertNotEquals(difference.fingerprint(), other.opNode(PegOp.MINUS, otherOne.id, other.opNode("x").id).fingerprint());
+
+    final PegNode loops = nestedLoops(graph, 2);
+    assertEquals(2, loops.thetaCount());
+    assertEquals(nestedLoops(other, 2).fingerprint(), loops.fingerprint());
+  }
+
+  @Test
+  public void testConcurrentInterning() throws Exception {
+    final PegGraph graph = PegGraph.concurrent();
+    final int threads = 8;
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final List<Future<List<PegNode>>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; ++t) {
+      futures.add(pool.submit(() -> {
+        final List<PegNode> nodes = new ArrayList<>();
+        PegNode acc = graph.intLit(0);
+        for (int i = 1; i < 500; ++i) {
+          acc = graph.opNode(PegOp.PLUS, acc.id, graph.intLit(i).id);
+          nodes.add(acc);
+          nodes.add(graph.phi(graph.boolLit(i % 2 == 0).id, acc.id, graph.unit().id));
+        }
+        return nodes;
+      }));
+    }
+    final List<PegNode> first = futures.get(0).get();
+    for (Future<List<PegNode>> f : futures) {
+      final List<PegNode> nodes = f.get();
+      for (int i = 0; i < nodes.size(); ++i) {
+        assertSame(first.get(i), nodes.get(i));
+      }
+    }
+    pool.shutdown();
+
+    // Every thread shared the same nodes, so nothing was allocated twice
+    final Map<Integer, PegNode> idTable = graph.getIdLookup();
+    assertEquals(graph.size(), idTable.size());
+    for (PegNode node : idTable.values()) {
+      for (Integer child : node.children()) {
+        assertTrue(child < node.id);
+      }
+    }
+  }
+}
@@ -8,6 +8,11 @@ import serializer.peg.testing.TestPairs;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
 
 public class PegTranslatorTest {
   @Test
@@ -25,6 +30,263 @@ public class PegTranslatorTest {
     testJavaFile("tests/subjects/heapy-expressions/Expressions.java");
   }
 
+  @Test
+  public void testResumeFromCheckpoints() {
+    final String original = "class A {\n"
+        + "  int f(int n) {\n"
+        + "    int s = 0;\n"
+        + "    for (int i = 0; i < n; i++) s = s + i;\n"
+        + "    s = s - 2;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n";
+    final String mutant = original.replace("s - 2", "s - 3");
+    final PegGraph graph = new PegGraph();
+    final PegTranslator translator = new PegTranslator(graph);
+    translator.recordCheckpoints();
+    final PegNode peg = translator.translate(StaticJavaParser.parse(original)).values().iterator().next();
+
+    // Resuming after the loop reuses the original's thetas, so an unchanged method is translated to the same node
+    assertSame(peg, translator.translate(StaticJavaParser.parse(original), "f(int)", TranslationBudget.UNLIMITED, 5));
+    assertNotSame(peg, translator.translate(StaticJavaParser.parse(original), "f(int)"));
+
+    // A resumed mutant has the same structure as one translated from scratch
+    final PegNode resumed = translator.translate(StaticJavaParser.parse(mutant), "f(int)",
+        TranslationBudget.UNLIMITED, 5);
+    final PegNode full = new PegTranslator(graph).translate(StaticJavaParser.parse(mutant), "f(int)");
+    assertNotSame(resumed, full);
+    assertEquals(full.fingerprint(), resumed.fingerprint());
+    assertNotEquals(peg.fingerprint(), resumed.fingerprint());
+
+    // A statement before the mutated line that differs from the original's is translated again
+    final String changedEarlier = mutant.replace("int s = 0", "int s = 1");
+    final PegNode fromStart = translator.translate(StaticJavaParser.parse(changedEarlier), "f(int)",
+        TranslationBudget.UNLIMITED, 5);
+    assertEquals(new PegTranslator(graph).translate(StaticJavaParser.parse(changedEarlier), "f(int)").fingerprint(),
+        fromStart.fingerprint());
+  }
+
+  @Test
+  public void testResumeFromSharedCheckpoints() throws Exception {
+    // Exit conditions from the null checks are built into the checkpoints' contexts before and after the loop
+    final String original = "class A {\n"
+        + "  int x;\n"
+        + "  A next;\n"
+        + "  int f(int n, A a) {\n"
+        + "    int s = a.x;\n"
+        + "    s = s + next.x;\n"
+        + "    for (int i = 0; i < n; i++) s = s + a.x;\n"
+        + "    if (s > n) s = s - next.x;\n"
+        + "    s = s * 2;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n";
+    final String[][] mutations = {
+        {"int s = a.x", "int s = next.x"}, {"s + next.x", "s - next.x"}, {"i++", "++i"}, {"i++", "i--"},
+        {"s + a.x;", "s + n;"}, {"s > n", "s >= n"}, {"s > n", "s <= n"}, {"s - next.x", "s - a.x"},
+        {"s - next.x", "s + next.x"}, {"s * 2", "s * 3"}, {"s * 2", "s + s"}, {"s * 2", "s * 3"},
+    };
+    final List<CompilationUnit> mutants = new ArrayList<>();
+    final List<Integer> lines = new ArrayList<>();
+    for (String[] mutation : mutations) {
+      final int at = original.indexOf(mutation[0]);
+      mutants.add(StaticJavaParser.parse(original.substring(0, at) + mutation[1]
+          + original.substring(at + mutation[0].length())));
+      lines.add(original.substring(0, at).split("\n", -1).length);
+    }
+
+    // Translate every mutant a few times in turn, on one thread and then on many threads sharing one graph
+    final int rounds = 4;
+    final PegTranslator single = new PegTranslator(new PegGraph());
+    single.recordCheckpoints();
+    single.translate(StaticJavaParser.parse(original));
+    final List<PegNode> expected = new ArrayList<>();
+    for (int i = 0; i < rounds * mutants.size(); ++i) {
+      expected.add(single.translate(mutants.get(i % mutants.size()), "f(int,A)", TranslationBudget.UNLIMITED,
+          lines.get(i % mutants.size())));
+    }
+
+    final PegGraph graph = PegGraph.concurrent();
+    final PegTranslator shared = new PegTranslator(graph);
+    shared.recordCheckpoints();
+    shared.translate(StaticJavaParser.parse(original));
+    final ThreadLocal<PegTranslator> translators = ThreadLocal.withInitial(() -> {
+      final PegTranslator t = new PegTranslator(graph);
+      t.shareCheckpoints(shared);
+      return t;
+    });
+    final ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<PegNode>> futures = new ArrayList<>();
+      for (int i = 0; i < rounds * mutants.size(); ++i) {
+        final int m = i % mutants.size();
+        futures.add(pool.submit(() -> translators.get().translate(mutants.get(m), "f(int,A)",
+            TranslationBudget.UNLIMITED, lines.get(m))));
+      }
+      final List<PegNode> actual = new ArrayList<>();
+      for (Future<PegNode> future : futures) {
+        actual.add(future.get());
+      }
+
+      // The mutants are partitioned by pid the same way, and each one has the same structure
+      assertEquals(partition(expected), partition(actual));
+      for (int i = 0; i < expected.size(); ++i) {
+        assertEquals(expected.get(i).fingerprint(), actual.get(i).fingerprint());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @return for each of {@code pegs}, the index of the first one with the same id
+   */
+  private static List<Integer> partition(final List<PegNode> pegs) {
+    final Map<Integer, Integer> first = new HashMap<>();
+    final List<Integer> partition = new ArrayList<>();
+    for (int i = 0; i < pegs.size(); ++i) {
+      partition.add(first.computeIfAbsent(pegs.get(i).id, id -> partition.size()));
+    }
+    return partition;
+  }
+
+  @Test
+  public void testLoopInvariantLocalHasNoTheta() {
+    // Only i and s change; k and the heap keep their values from before the loop
+    assertEquals(2, loopThetas("class A {\n"
+        + "  int f(int n, int k) {\n"
+        + "    int s = 0;\n"
+        + "    for (int i = 0; i < n; i++) s = s + k;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n").size());
+  }
+
+  @Test
+  public void testLoopWritesFieldThroughSimpleName() {
+    // i and the heap's state change, but nothing in the loop can throw
+    final Set<PegNode.ThetaNode> thetas = loopThetas("class A {\n"
+        + "  int x;\n"
+        + "  void f(int n) {\n"
+        + "    for (int i = 0; i < n; i++) x = i;\n"
+        + "  }\n"
+        + "}\n");
+    assertEquals(2, thetas.size());
+    assertEquals(1, thetas.stream().filter(theta -> theta.getContinuation().isPresent()
+        && theta.getContinuation().get().isOpNode()
+        && theta.getContinuation().get().asOpNode().get().op().equals("wr")).count());
+  }
+
+  @Test
+  public void testNestedLoops() {
+    // The outer loop has thetas for i, s and the status that the inner loop evaluates, and the inner one for j and s
+    assertEquals(5, loopThetas("class A {\n"
+        + "  int f(int n) {\n"
+        + "    int s = 0;\n"
+        + "    for (int i = 0; i < n; i++)\n"
+        + "      for (int j = 0; j < i; j++) s = s + j;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n").size());
+  }
+
+  @Test
+  public void testLoopThatOnlyChangesStatus() {
+    // The division can throw, so the status gets a theta without the state getting one
+    assertEquals(2, loopThetas("class A {\n"
+        + "  int f(int n, int d) {\n"
+        + "    int s = 0;\n"
+        + "    while (s < n) s = s + n / d;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n").size());
+  }
+
+  @Test
+  public void testLoopEffectsMissedByTheScan() {
+    final String source = "class A {\n"
+        + "  int f(int n) {\n"
+        + "    int s = 0;\n"
+        + "    for (int i = 0; i < n; i++) s = s + i;\n"
+        + "    return s;\n"
+        + "  }\n"
+        + "}\n";
+    // A scan that finds nothing falls back to thetas for i, n, s and the heap's state and status
+    final PegGraph graph = new PegGraph();
+    final PegTranslator translator = new PegTranslator(graph);
+    translator.stmtVisitor.loopEffects = (ctx, parts) -> new LoopEffects();
+    final PegNode peg = translator.translate(StaticJavaParser.parse(source)).values().iterator().next();
+    assertEquals(5, loopThetas(graph, peg).size());
+
+    // The first translation was rolled back, leaving the same graph as translating conservatively to begin with
+    final PegGraph conservativeGraph = new PegGraph();
+    final PegTranslator conservative = new PegTranslator(conservativeGraph);
+    conservative.stmtVisitor.loopEffects = (ctx, parts) -> LoopEffects.all(ctx.getLocalNames());
+    final PegNode expected = conservative.translate(StaticJavaParser.parse(source)).values().iterator().next();
+    assertEquals(expected.fingerprint(), peg.fingerprint());
+    assertEquals(conservativeGraph.size(), graph.size());
+  }
+
+  @Test
+  public void testLongVariableShiftIsFoldedAsLong() {
+    // x is a long, so x << 40 is 2^40; folding 1 << 40 as an int would give 256
+    assertEquals(1L << 40, returnedLong("class A {\n"
+        + "  long f() {\n"
+        + "    long x = 1;\n"
+        + "    return x << 40;\n"
+        + "  }\n"
+        + "}\n"));
+    assertEquals(1L << 40, returnedLong("class A {\n"
+        + "  long f(long x) {\n"
+        + "    x = 1;\n"
+        + "    return x << 40;\n"
+        + "  }\n"
+        + "}\n"));
+    assertEquals(1L << 40, returnedLong("class A {\n"
+        + "  long x;\n"
+        + "  long f() {\n"
+        + "    this.x = 1;\n"
+        + "    return x << 40;\n"
+        + "  }\n"
+        + "}\n"));
+  }
+
+  /**
+   * @return the value of the long literal that the only method in {@code source} returns
+   */
+  private static long returnedLong(final String source) {
+    final PegGraph graph = new PegGraph();
+    final PegNode peg = new PegTranslator(graph).translate(StaticJavaParser.parse(source)).values().iterator().next();
+    final PegNode value = graph.lookup(peg.children().get(0));
+    assertTrue(value.toDerefString(), value instanceof PegNode.LongLit);
+    return ((PegNode.LongLit) value).value;
+  }
+
+  /**
+   * @return the thetas that the only method in {@code source} depends on, following theta continuations
+   */
+  private static Set<PegNode.ThetaNode> loopThetas(final String source) {
+    final PegGraph graph = new PegGraph();
+    final PegNode peg = new PegTranslator(graph).translate(StaticJavaParser.parse(source)).values().iterator().next();
+    return loopThetas(graph, peg);
+  }
+
+  private static Set<PegNode.ThetaNode> loopThetas(final PegGraph graph, final PegNode peg) {
+    final Set<PegNode.ThetaNode> thetas = new HashSet<>();
+    final Set<Integer> seen = new HashSet<>();
+    final Deque<Integer> worklist = new ArrayDeque<>(Collections.singleton(peg.id));
+    while (!worklist.isEmpty()) {
+      final int id = worklist.pop();
+      if (!seen.add(id)) continue;
+      final PegNode node = graph.lookup(id);
+      worklist.addAll(node.children());
+      node.asThetaNode().ifPresent(theta -> {
+        thetas.add(theta);
+        theta.getContinuation().ifPresent(continuation -> worklist.push(continuation.id));
+      });
+    }
+    return thetas;
+  }
 
   /**
    * Find all methods in a java file with the {@code <pre>(expected (peg form))</pre>} and check the expected PEG
@@ -0,0 +1,113 @@
+package serializer.peg;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PersistentMapTest {
+  /**
+   * A key whose hash is chosen by the test, to force collisions
+   */
+  private static final class Key {
+    final String name;
+    final int hash;
+
+    Key(final String name, final int hash) {
+      this.name = name;
+      this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).name.equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  @Test
+  public void testAgainstHashMap() {
+    final Random random = new Random(42);
+    final List<Key> keys = new ArrayList<>();
+    for (int i = 0; i < 300; ++i) {
+      // Few distinct hashes, so that many keys collide and many share hash prefixes
+      keys.add(new Key("k" + i, random.nextInt(64) * 0x1000_0001));
+    }
+    final Map<Key, Integer> expected = new HashMap<>();
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    final List<PersistentMap<Key, Integer>> snapshots = new ArrayList<>();
+    final List<Map<Key, Integer>> expectedSnapshots = new ArrayList<>();
+    for (int step = 0; step < 2000; ++step) {
+      final Key key = keys.get(random.nextInt(keys.size()));
+      final Integer value = random.nextInt(10);
+      expected.put(key, value);
+      map = map.put(key, value);
+      if (step % 100 == 0) {
+        snapshots.add(map);
+        expectedSnapshots.add(new HashMap<>(expected));
+      }
+    }
+    assertEquals(expected, toHashMap(map));
+    // Updates never change older maps
+    for (int i = 0; i < snapshots.size(); ++i) {
+      assertEquals(expectedSnapshots.get(i), toHashMap(snapshots.get(i)));
+    }
+    assertSame(map, map.put(keys.get(0), map.get(keys.get(0))));
+
+    // Intersect two unrelated maps, including their collision nodes
+    PersistentMap<Key, Integer> other = PersistentMap.empty();
+    for (int i = 0; i < keys.size(); i += 3) {
+      other = other.put(keys.get(i), 100 + i);
+    }
+    final Map<Key, Integer> expectedIntersection = new HashMap<>();
+    for (Map.Entry<Key, Integer> e : expected.entrySet()) {
+      final Integer v = other.get(e.getKey());
+      if (v != null) expectedIntersection.put(e.getKey(), e.getValue() + v);
+    }
+    assertEquals(expectedIntersection, toHashMap(map.intersect(other, Integer::sum)));
+  }
+
+  @Test
+  public void testIntersect() {
+    PersistentMap<String, Integer> base = PersistentMap.empty();
+    for (int i = 0; i < 100; ++i) {
+      base = base.put("v" + i, i);
+    }
+    final PersistentMap<String, Integer> thn = base.put("v1", 1000).put("only-then", 1);
+    final PersistentMap<String, Integer> els = base.put("v2", 2000).put("only-else", 2);
+
+    final List<String> combined = new ArrayList<>();
+    final PersistentMap<String, Integer> merged = thn.intersect(els, (a, b) -> {
+      combined.add(a + "/" + b);
+      return -1;
+    });
+    // Only the keys changed since the fork are combined
+    combined.sort(null);
+    assertEquals(Arrays.asList("1000/1", "2/2000"), combined);
+    assertEquals(100, merged.size());
+    assertEquals(Integer.valueOf(-1), merged.get("v1"));
+    assertEquals(Integer.valueOf(-1), merged.get("v2"));
+    assertEquals(Integer.valueOf(3), merged.get("v3"));
+    assertFalse(merged.containsKey("only-then"));
+
+    assertSame(base, base.intersect(base, (a, b) -> { throw new AssertionError(); }));
+    assertTrue(base.put("v5", 5).sharesRoot(base));
+  }
+
+  private static <K, V> Map<K, V> toHashMap(final PersistentMap<K, V> map) {
+    final Map<K, V> result = new HashMap<>();
+    map.forEach(result::put);
+    assertEquals(result.size(), map.size());
+    return result;
+  }
+}
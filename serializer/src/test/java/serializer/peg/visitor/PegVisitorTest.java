@@ -1,6 +1,7 @@
 package serializer.peg.visitor;
 
 import org.junit.Test;
+import serializer.peg.PegGraph;
 import serializer.peg.PegNode;
 
 import java.util.HashMap;
@@ -11,22 +12,23 @@ import static org.junit.Assert.*;
 public class PegVisitorTest {
 
   final PreOrderEnumeratorVisitor v = new PreOrderEnumeratorVisitor();
-  final PegNode zero = PegNode.intLit(0);
-  final PegNode one = PegNode.intLit(1);
-  final PegNode two = PegNode.intLit(2);
-  final PegNode tru = PegNode.boolLit(true);
-  final PegNode fls = PegNode.boolLit(false);
+  final PegGraph graph = new PegGraph();
+  final PegNode zero = graph.intLit(0);
+  final PegNode one = graph.intLit(1);
+  final PegNode two = graph.intLit(2);
+  final PegNode tru = graph.boolLit(true);
+  final PegNode fls = graph.boolLit(false);
 
   // (theta[0] (int-lit 0) blank[0])
-  final PegNode.ThetaNode theta0 = PegNode.theta(zero.id);
+  final PegNode.ThetaNode theta0 = graph.theta(zero.id);
 
   // (phi (bool-lit true) (int-lit 1) (int-lit 2))
-  final PegNode.PhiNode phi0 = PegNode.phi(tru.id, one.id, two.id);
+  final PegNode.PhiNode phi0 = graph.phi(tru.id, one.id, two.id);
 
   // (phi (bool-lit false)
   //      (phi (bool-lit true) (int-lit 1) (int-lit 2))
   //      (phi (bool-lit true) (int-lit 1) (int-lit 2)))
-  final PegNode.PhiNode phi1 = PegNode.phi(fls.id, phi0.id, phi0.id);
+  final PegNode.PhiNode phi1 = graph.phi(fls.id, phi0.id, phi0.id);
 
   @Test
   public void testTheta() {
@@ -45,7 +47,7 @@ public class PegVisitorTest {
   @Test
   public void testSelfReference() {
     // (theta 0 theta))
-    final PegNode.ThetaNode theta = PegNode.theta(zero.id);
+    final PegNode.ThetaNode theta = graph.theta(zero.id);
     theta.setContinuation(theta.id);
 
     final Map<PegNode, Integer> map = new HashMap<>();
@@ -56,8 +58,8 @@ public class PegVisitorTest {
   @Test
   public void testIdentifiedEdgeIsFollowed() {
     // (theta 0 (+ theta 1))
-    final PegNode.ThetaNode theta = PegNode.theta(zero.id);
-    final PegNode plus = PegNode.opNode("+", theta.id, one.id);
+    final PegNode.ThetaNode theta = graph.theta(zero.id);
+    final PegNode plus = graph.opNode("+", theta.id, one.id);
     theta.setContinuation(plus.id);
 
     final Map<PegNode, Integer> map = new HashMap<>();